@@ -0,0 +1,132 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Builds DNS messages in wire format for the benchmarks, using name compression the same way
+ * real servers do. The canned messages mirror typical responses: a referral from a root server
+ * to the .com servers with a large additional section, and an authoritative answer with a
+ * CNAME chain.
+ */
+final class BenchmarkMessages {
+
+    static final int ANSWER = 0;
+    static final int AUTHORITY = 1;
+    static final int ADDITIONAL = 2;
+
+    private final byte[] buffer = new byte[4096];
+    private final Map<String, Integer> namePositions = new HashMap<>();
+    private final int[] sectionCounts = new int[3];
+    private int position = 12;
+
+    /** Starts a response to a single question.
+     *
+     * @param id            Transaction ID.
+     * @param authoritative Whether the AA bit is set.
+     * @param question      Node that was queried.
+     */
+    BenchmarkMessages(int id, boolean authoritative, DNSNode question) {
+        buffer[0] = (byte) (id >>> 8);
+        buffer[1] = (byte) id;
+        buffer[2] = (byte) (0x80 | (authoritative ? 0x04 : 0));
+        buffer[5] = 1;
+        writeName(question.getHostName());
+        writeShort(question.getType().getCode());
+        writeShort(1);
+    }
+
+    BenchmarkMessages nameRecord(int section, String owner, RecordType type, long ttl, String target) {
+        startRecord(section, owner, type, ttl);
+        int lengthPosition = position;
+        position += 2;
+        writeName(target);
+        int length = position - lengthPosition - 2;
+        buffer[lengthPosition] = (byte) (length >>> 8);
+        buffer[lengthPosition + 1] = (byte) length;
+        return this;
+    }
+
+    BenchmarkMessages addressRecord(int section, String owner, long ttl, InetAddress address) {
+        byte[] bytes = address.getAddress();
+        startRecord(section, owner, bytes.length == 4 ? RecordType.A : RecordType.AAAA, ttl);
+        writeShort(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+        return this;
+    }
+
+    byte[] build() {
+        for (int section = 0; section < 3; section++) {
+            buffer[6 + 2 * section] = (byte) (sectionCounts[section] >>> 8);
+            buffer[7 + 2 * section] = (byte) sectionCounts[section];
+        }
+        byte[] message = new byte[position];
+        System.arraycopy(buffer, 0, message, 0, position);
+        return message;
+    }
+
+    private void startRecord(int section, String owner, RecordType type, long ttl) {
+        sectionCounts[section]++;
+        writeName(owner);
+        writeShort(type.getCode());
+        writeShort(1);
+        writeShort((int) (ttl >>> 16));
+        writeShort((int) ttl);
+    }
+
+    private void writeName(String name) {
+        while (!name.isEmpty()) {
+            Integer pointer = namePositions.get(name);
+            if (pointer != null) {
+                writeShort(0xC000 | pointer);
+                return;
+            }
+            namePositions.put(name, position);
+            int dot = name.indexOf('.');
+            String label = dot < 0 ? name : name.substring(0, dot);
+            buffer[position++] = (byte) label.length();
+            for (int i = 0; i < label.length(); i++)
+                buffer[position++] = (byte) label.charAt(i);
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+        buffer[position++] = 0;
+    }
+
+    private void writeShort(int value) {
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    /** Referral from a root server for www.example.com: 13 NS records for com in the authority
+     * section, and an A and an AAAA record for each of them in the additional section.
+     */
+    static byte[] comReferral() throws UnknownHostException {
+        BenchmarkMessages message = new BenchmarkMessages(0x1234, false, new DNSNode("www.example.com", RecordType.A));
+        for (char server = 'a'; server <= 'm'; server++)
+            message.nameRecord(AUTHORITY, "com", RecordType.NS, 172800, server + ".gtld-servers.net");
+        for (char server = 'a'; server <= 'm'; server++) {
+            message.addressRecord(ADDITIONAL, server + ".gtld-servers.net", 172800,
+                    InetAddress.getByAddress(new byte[]{(byte) 192, 5, 6, (byte) (30 + server - 'a')}));
+            message.addressRecord(ADDITIONAL, server + ".gtld-servers.net", 172800,
+                    InetAddress.getByName("2001:503:a83e::2:" + (30 + server - 'a')));
+        }
+        return message.build();
+    }
+
+    /** Authoritative answer for www.example.com that goes through two CNAME records before
+     * reaching four A records, with the name servers of the final zone in the authority section.
+     */
+    static byte[] cnameAnswer() throws UnknownHostException {
+        BenchmarkMessages message = new BenchmarkMessages(0x4321, true, new DNSNode("www.example.com", RecordType.A));
+        message.nameRecord(ANSWER, "www.example.com", RecordType.CNAME, 300, "www.example.com.cdn.example.net");
+        message.nameRecord(ANSWER, "www.example.com.cdn.example.net", RecordType.CNAME, 60, "edge.cdn.example.net");
+        for (int i = 1; i <= 4; i++)
+            message.addressRecord(ANSWER, "edge.cdn.example.net", 20,
+                    InetAddress.getByAddress(new byte[]{(byte) 203, 0, 113, (byte) i}));
+        for (int i = 1; i <= 4; i++)
+            message.nameRecord(AUTHORITY, "cdn.example.net", RecordType.NS, 3600, "ns" + i + ".example.net");
+        return message.build();
+    }
+}
@@ -0,0 +1,72 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Reads and updates a cache holding 10000 nodes, from a single thread and from as many
+ * threads as there are processors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DNSCacheBenchmark {
+
+    private static final int NODES = 10000;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSNode[] nodes;
+    private ResourceRecord[] records;
+
+    @Setup
+    public void setUp() throws Exception {
+        cache.clear();
+        nodes = new DNSNode[NODES];
+        records = new ResourceRecord[NODES];
+        for (int i = 0; i < NODES; i++) {
+            nodes[i] = DNSNode.of("host" + i + ".example.com", RecordType.A);
+            records[i] = new ResourceRecord(nodes[i], 86400,
+                    InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >>> 8), (byte) i}));
+            cache.addResult(records[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void getSingleThreaded(Blackhole blackhole) {
+        get(blackhole);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void getContended(Blackhole blackhole) {
+        get(blackhole);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addSingleThreaded() {
+        add();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addContended() {
+        add();
+    }
+
+    private void get(Blackhole blackhole) {
+        for (ResourceRecord record : cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(NODES)]))
+            blackhole.consume(record);
+    }
+
+    private void add() {
+        cache.addResult(records[ThreadLocalRandom.current().nextInt(NODES)]);
+    }
+}
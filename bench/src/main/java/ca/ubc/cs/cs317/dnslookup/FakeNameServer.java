@@ -0,0 +1,95 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/** In-process name servers used to benchmark a full iterative resolution without network
+ * access. Three servers listen on the same port of different loopback addresses: a root server
+ * (127.0.0.1) that refers to a com server (127.0.0.2), which refers to an example.com server
+ * (127.0.0.3) that answers every A query authoritatively.
+ */
+class FakeNameServer implements Closeable {
+
+    static final String ROOT = "127.0.0.1";
+    private static final String COM = "127.0.0.2";
+    private static final String EXAMPLE_COM = "127.0.0.3";
+
+    private final DatagramSocket[] sockets = new DatagramSocket[3];
+    private final int port;
+
+    FakeNameServer() throws IOException {
+        int boundPort = -1;
+        for (int attempt = 0; attempt < 10 && boundPort < 0; attempt++) {
+            try {
+                sockets[0] = new DatagramSocket(new InetSocketAddress(ROOT, 0));
+                sockets[1] = new DatagramSocket(new InetSocketAddress(COM, sockets[0].getLocalPort()));
+                sockets[2] = new DatagramSocket(new InetSocketAddress(EXAMPLE_COM, sockets[0].getLocalPort()));
+                boundPort = sockets[0].getLocalPort();
+            } catch (BindException e) {
+                close();
+            }
+        }
+        if (boundPort < 0)
+            throw new BindException("Could not bind the fake name servers to a common port");
+        port = boundPort;
+
+        for (DatagramSocket socket : sockets) {
+            Thread thread = new Thread(() -> serve(socket), "fake-ns-" + socket.getLocalAddress().getHostAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        for (DatagramSocket socket : sockets)
+            if (socket != null)
+                socket.close();
+    }
+
+    private void serve(DatagramSocket socket) {
+        byte[] buffer = new byte[512];
+        String server = socket.getLocalAddress().getHostAddress();
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket query = new DatagramPacket(buffer, buffer.length);
+                socket.receive(query);
+                byte[] response = respond(server, ByteBuffer.wrap(query.getData(), 0, query.getLength()));
+                socket.send(new DatagramPacket(response, response.length, query.getSocketAddress()));
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    System.err.println("Fake name server failure: " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] respond(String server, ByteBuffer query) throws UnknownHostException {
+        int id = DNSWireFormat.readUnsignedShort(query, 0);
+        String name = DNSWireFormat.decodeName(query, 12);
+        RecordType type = RecordType.getByCode(DNSWireFormat.readUnsignedShort(query, DNSWireFormat.skipName(query, 12)));
+        DNSNode question = new DNSNode(name, type);
+
+        switch (server) {
+            case ROOT:
+                return new BenchmarkMessages(id, false, question)
+                        .nameRecord(BenchmarkMessages.AUTHORITY, "com", RecordType.NS, 172800, "a.gtld-servers.net")
+                        .addressRecord(BenchmarkMessages.ADDITIONAL, "a.gtld-servers.net", 172800, InetAddress.getByName(COM))
+                        .build();
+            case COM:
+                return new BenchmarkMessages(id, false, question)
+                        .nameRecord(BenchmarkMessages.AUTHORITY, "example.com", RecordType.NS, 172800, "ns1.example.com")
+                        .addressRecord(BenchmarkMessages.ADDITIONAL, "ns1.example.com", 172800, InetAddress.getByName(EXAMPLE_COM))
+                        .build();
+            default:
+                return new BenchmarkMessages(id, true, question)
+                        .addressRecord(BenchmarkMessages.ANSWER, name, 300, InetAddress.getByName("192.0.2.1"))
+                        .build();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/** Creates query packets for a name whose template is already cached, as happens for every
+ * retry and every repeated lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryGeneratorBenchmark {
+
+    private DNSNode node;
+    private InetAddress server;
+    private int transactionID;
+
+    @Setup
+    public void setUp() throws Exception {
+        node = DNSNode.of("www.cs.ubc.ca", RecordType.A);
+        server = InetAddress.getByName("199.7.83.42");
+    }
+
+    @Benchmark
+    public DatagramPacket createPacket() {
+        transactionID = (transactionID + 1) & 0xFFFF;
+        return new DNSQueryGenerator(node, false).createPacket(server, 53, transactionID);
+    }
+}
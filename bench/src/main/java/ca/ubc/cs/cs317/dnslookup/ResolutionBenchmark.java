@@ -0,0 +1,47 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Full iterative resolution of www.example.com (root, com and example.com servers) against
+ * in-process fake name servers, starting from an empty cache every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolutionBenchmark {
+
+    private FakeNameServer nameServer;
+    private DNSNode node;
+
+    @Setup(Level.Trial)
+    public void startServers() throws Exception {
+        nameServer = new FakeNameServer();
+        DNSLookupService.initialize(InetAddress.getByName(FakeNameServer.ROOT), nameServer.getPort());
+        node = new DNSNode("www.example.com", RecordType.A);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        DNSCache.getInstance().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServers() {
+        nameServer.close();
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getResults() {
+        Set<ResourceRecord> results = DNSLookupService.resolve(node);
+        if (results.isEmpty())
+            throw new IllegalStateException("Resolution failed");
+        return results;
+    }
+}
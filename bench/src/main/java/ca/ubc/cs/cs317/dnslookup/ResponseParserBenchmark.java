@@ -0,0 +1,37 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Parses realistic responses: a root referral with a large additional section, and an
+ * authoritative answer with a CNAME chain. Both use name compression.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseParserBenchmark {
+
+    @Param({"com-referral", "cname-answer"})
+    public String response;
+
+    private byte[] message;
+    private DNSNode question;
+
+    @Setup
+    public void setUp() throws Exception {
+        message = response.equals("com-referral") ? BenchmarkMessages.comReferral() : BenchmarkMessages.cnameAnswer();
+        question = new DNSNode("www.example.com", RecordType.A);
+    }
+
+    @Benchmark
+    public DNSResponseParser parse() throws Exception {
+        DNSResponseParser parser = new DNSResponseParser(ByteBuffer.wrap(message), question, false);
+        parser.parse();
+        return parser;
+    }
+}
@@ -0,0 +1,174 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Index of the CNAME chains in the cache. Each alias is mapped directly to the final canonical
+ * name of its chain, i.e., the first name in the chain that has no cached CNAME record, so that
+ * an aliased name is resolved with a single map lookup rather than one cache read per link.
+ *
+ * Each mapping expires with the first link of its chain to expire, so a mapping is never used
+ * after any of its links could have changed. The index is updated as CNAME records are added to
+ * the cache: the new link gets a mapping, and the mappings of aliases whose chains ended at the
+ * new alias are extended to its canonical name. Once a mapping has expired, it is rebuilt from
+ * the links still in the cache the next time it is needed.
+ *
+ * At most dnslookup.cname.maxEntries (default DEFAULT_MAXIMUM_SIZE) aliases are indexed. When the
+ * index is full, expired mappings are removed, and if none has expired, new aliases are not
+ * indexed, but are still resolved from the cache one link at a time. Chains are followed for at
+ * most MAX_CHAIN_LENGTH links, and chains that loop back to their alias are not indexed.
+ */
+class CNameChainIndex {
+
+    private static final int DEFAULT_MAXIMUM_SIZE = 100000;
+    private static final int MAX_CHAIN_LENGTH = 10;
+
+    private static CNameChainIndex instance = new CNameChainIndex();
+
+    private final Map<String, Chain> chains = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> aliasesOf = new ConcurrentHashMap<>();   // canonical name -> aliases
+    private final int maximumSize = Integer.getInteger("dnslookup.cname.maxEntries", DEFAULT_MAXIMUM_SIZE);
+
+    static CNameChainIndex getInstance() {
+        return instance;
+    }
+
+    /** Returns the final canonical name of a host name, following the CNAME records in the cache.
+     *
+     * @param hostName Host name that may be an alias.
+     * @return The canonical name, case-folded, or null if the host name has no cached CNAME record.
+     */
+    String resolve(String hostName) {
+        return resolve(key(hostName), 0);
+    }
+
+    private String resolve(String alias, int depth) {
+        Chain chain = chains.get(alias);
+        if (chain != null && chain.expiration > DNSClock.millis())
+            return chain.canonicalName;
+        if (depth >= MAX_CHAIN_LENGTH)
+            return null;
+
+        // Rebuild the mapping from the first link, once the rest of the chain is indexed
+        ResourceRecord link = firstLink(alias);
+        if (link == null) {
+            if (chain != null)
+                remove(alias, chain);
+            return null;
+        }
+        String target = key(link.getTextResult());
+        resolve(target, depth + 1);
+        addLink(alias, target, link.getExpirationTime());
+        chain = chains.get(alias);
+        return chain != null && chain.expiration > DNSClock.millis() ? chain.canonicalName : target;
+    }
+
+    /** Updates the index for a CNAME record that was just added to the cache.
+     *
+     * @param record CNAME record, whose host name is the alias and text result the target.
+     */
+    void addLink(ResourceRecord record) {
+        addLink(key(record.getHostName()), key(record.getTextResult()), record.getExpirationTime());
+    }
+
+    private synchronized void addLink(String alias, String target, long expiration) {
+        long now = DNSClock.millis();
+        if (expiration <= now)
+            return;
+        Chain next = chains.get(target);
+        Chain chain = next == null || next.expiration <= now ? new Chain(target, expiration, 1)
+                : new Chain(next.canonicalName, Math.min(expiration, next.expiration), next.length + 1);
+        if (chain.canonicalName.equals(alias) || chain.length > MAX_CHAIN_LENGTH)
+            return;
+        if (!chains.containsKey(alias) && chains.size() >= maximumSize) {
+            removeExpired(now);
+            if (chains.size() >= maximumSize)
+                return;
+        }
+        put(alias, chain);
+
+        // Chains that ended at the alias now continue to its canonical name
+        Set<String> dependents = aliasesOf.remove(alias);
+        if (dependents == null)
+            return;
+        for (String dependent : dependents) {
+            Chain previous = chains.get(dependent);
+            if (previous == null || !previous.canonicalName.equals(alias))
+                continue;
+            if (dependent.equals(chain.canonicalName) || previous.length + chain.length > MAX_CHAIN_LENGTH)
+                chains.remove(dependent);
+            else
+                put(dependent, new Chain(chain.canonicalName, Math.min(previous.expiration, chain.expiration),
+                        previous.length + chain.length));
+        }
+    }
+
+    /** Returns the number of aliases currently indexed, including expired ones not removed yet.
+     */
+    int size() {
+        return chains.size();
+    }
+
+    /** Removes every mapping from the index.
+     */
+    synchronized void clear() {
+        chains.clear();
+        aliasesOf.clear();
+    }
+
+    private void put(String alias, Chain chain) {
+        Chain previous = chains.put(alias, chain);
+        if (previous != null && !previous.canonicalName.equals(chain.canonicalName))
+            removeAlias(previous.canonicalName, alias);
+        aliasesOf.computeIfAbsent(chain.canonicalName, key -> ConcurrentHashMap.newKeySet()).add(alias);
+    }
+
+    private synchronized void remove(String alias, Chain chain) {
+        if (chains.remove(alias, chain))
+            removeAlias(chain.canonicalName, alias);
+    }
+
+    private void removeAlias(String canonicalName, String alias) {
+        aliasesOf.computeIfPresent(canonicalName, (key, aliases) -> {
+            aliases.remove(alias);
+            return aliases.isEmpty() ? null : aliases;
+        });
+    }
+
+    private void removeExpired(long now) {
+        for (Iterator<Map.Entry<String, Chain>> it = chains.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Chain> entry = it.next();
+            if (entry.getValue().expiration <= now) {
+                it.remove();
+                removeAlias(entry.getValue().canonicalName, entry.getKey());
+            }
+        }
+    }
+
+    private static ResourceRecord firstLink(String alias) {
+        for (ResourceRecord record : DNSCache.getInstance().peekCachedResults(DNSNode.of(alias, RecordType.CNAME)))
+            return record;
+        return null;
+    }
+
+    private static String key(String hostName) {
+        return DNSNameTable.getInstance().intern(hostName).getName();
+    }
+
+    /** Final canonical name of an alias, with the expiration time of the chain, i.e., of its
+     * first link to expire, and the number of links in the chain.
+     */
+    private static class Chain {
+        private final String canonicalName;
+        private final long expiration;
+        private final int length;
+
+        private Chain(String canonicalName, long expiration, int length) {
+            this.canonicalName = canonicalName;
+            this.expiration = expiration;
+            this.length = length;
+        }
+    }
+}
@@ -1,18 +1,101 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server. Expired results are never returned by
+ * getCachedResults, and are deleted from the cache in the background by a {@link DNSCacheExpiry}.
+ *
+ * The cache may be used by several lookups running at the same time. Nodes are hashed on their
+ * case-folded host name, and each node keeps its own concurrent record map, so lookups for
+ * different nodes never contend with each other, and updates to the same node only contend on
+ * that node's record map.
+ *
+ * The number of cached nodes is bounded. By default at most DEFAULT_MAXIMUM_SIZE nodes are
+ * kept, which may be changed with the dnslookup.cache.maxEntries system property or with
+ * setMaximumSize. When the cache is full, nodes are evicted according to a {@link DNSCachePolicy}.
+ *
+ * The cache counts how often each node is read. Once a node has been read at least
+ * dnslookup.cache.prefetchMinHits times (default 3) and one of its records has less than
+ * dnslookup.cache.prefetchFraction (default 0.1) of its original TTL left, the node is handed to
+ * the refresher registered with setRefresher, on a background thread, so that popular records
+ * are renewed before they expire. Expired records are also kept for up to
+ * dnslookup.cache.maxStaleSeconds (default 3600) seconds, and getStaleResults returns them, with
+ * a TTL of STALE_TTL_SECONDS, while a refresh of their node runs (serve-stale, RFC 8767).
+ *
+ * Negative results, i.e., queries for names that do not exist (NXDOMAIN) or that have no record
+ * of the requested type (NODATA), are cached as well (RFC 2308). They are represented by a
+ * resource record for the query node whose text result is NXDOMAIN or NODATA, and are kept in
+ * the same entry as the node's records, so they are bounded and expire the same way.
+ *
+ * CNAME records added to the cache are also indexed by the {@link CNameChainIndex}, which maps
+ * each alias to the final canonical name of its chain.
+ *
+ * When the dnslookup.cache.offHeap system property is true, records are kept outside of the Java
+ * heap by an {@link OffHeapRecordStore} instead, for caches of millions of nodes. The store
+ * bounds and evicts nodes itself, and expired records are removed by sweeping the whole store
+ * every EXPIRY_SWEEP_SECONDS rather than through a {@link DNSCacheExpiry}. Cached results are
+ * then copies, materialized when they are read.
  */
 public class DNSCache {
 
+    private static final int DEFAULT_MAXIMUM_SIZE = 100000;
+    private static final int DEFAULT_PREFETCH_MIN_HITS = 3;
+    private static final double DEFAULT_PREFETCH_FRACTION = 0.1;
+    private static final long DEFAULT_MAX_STALE_SECONDS = 3600;
+    private static final long STALE_TTL_SECONDS = 30;
+    private static final int REFRESH_THREADS = 4;
+    private static final long EXPIRY_SWEEP_SECONDS = 1;
+
+    public static final String NXDOMAIN = "NXDOMAIN";
+    public static final String NODATA = "NODATA";
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private Map<DNSNode, CacheEntry> cachedResults = new ConcurrentHashMap<>();
+    private long maxStaleMillis = Long.getLong("dnslookup.cache.maxStaleSeconds", DEFAULT_MAX_STALE_SECONDS) * 1000;
+    private int prefetchMinHits = Integer.getInteger("dnslookup.cache.prefetchMinHits", DEFAULT_PREFETCH_MIN_HITS);
+    private double prefetchFraction = Double.parseDouble(
+            System.getProperty("dnslookup.cache.prefetchFraction", String.valueOf(DEFAULT_PREFETCH_FRACTION)));
+    private OffHeapRecordStore store = Boolean.getBoolean("dnslookup.cache.offHeap")
+            ? new OffHeapRecordStore(Integer.getInteger("dnslookup.cache.maxEntries", DEFAULT_MAXIMUM_SIZE)) : null;
+    private Set<DNSNode> refreshingNodes = ConcurrentHashMap.newKeySet();
+    private DNSCacheExpiry expiry = store == null ? new DNSCacheExpiry(this::removeExpired, maxStaleMillis) : null;
+    private DNSCachePolicy policy =
+            new DNSCachePolicy(Integer.getInteger("dnslookup.cache.maxEntries", DEFAULT_MAXIMUM_SIZE));
+    private volatile Consumer<DNSNode> refresher;
+    private ThreadPoolExecutor refreshExecutor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder insertions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final CNameChainIndex cnameChains = CNameChainIndex.getInstance();
+
+    private DNSCache() {
+        refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "DNSCache-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        refreshExecutor.allowCoreThreadTimeOut(true);
+        if (store != null) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "DNSCache-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweepOffHeapStore, EXPIRY_SWEEP_SECONDS, EXPIRY_SWEEP_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,20 +107,200 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
+     * are cached for the specified query, returns an empty set. Expired results are skipped
+     * while iterating over the returned set. This method does not perform the query itself, it
      * only returns previously cached results.
      *
+     * The read is counted as a cache hit or miss.
+     *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        return getCachedResults(node, true);
+    }
+
+    /** Returns the records cached for a query, like getCachedResults, but without counting the
+     * read as a cache hit or miss. The resolver uses this method for its own reads, e.g., of name
+     * servers, their addresses or CNAME links, so that the hit and miss counts only reflect the
+     * lookups requested by clients.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        return getCachedResults(node, false);
+    }
+
+    private Set<ResourceRecord> getCachedResults(DNSNode node, boolean counted) {
+        if (store != null)
+            return getOffHeapResults(node, counted);
+        CacheEntry entry = cachedResults.get(node);
+        if (entry == null) {
+            if (counted)
+                misses.increment();
             return Collections.emptySet();
+        }
+
+        long now = DNSClock.millis();
+        if (counted) {
+            if (entry.hasValidRecord(now))
+                hits.increment();
+            else
+                misses.increment();
+        }
+        policy.recordAccess(node);
+        if (entry.hits.incrementAndGet() >= prefetchMinHits && refresher != null
+                && isDueForPrefetch(entry.records.values(), now, prefetchFraction))
+            scheduleRefresh(node, entry);
+        return new RecordSet(entry.records);
+    }
+
+    private Set<ResourceRecord> getOffHeapResults(DNSNode node, boolean counted) {
+        long now = DNSClock.millis();
+        Set<ResourceRecord> results = new HashSet<>();
+        int nodeHits = store.read(node, now, results, true);
+        if (counted) {
+            if (results.isEmpty())
+                misses.increment();
+            else
+                hits.increment();
+        }
+        if (nodeHits >= prefetchMinHits && refresher != null && isDueForPrefetch(results, now, prefetchFraction))
+            scheduleRefresh(node, null);
+        return Collections.unmodifiableSet(results);
+    }
+
+    /** Returns the records of a query that have expired recently, if the query has no valid
+     * record left, and schedules a refresh of the query. The records returned are copies with a
+     * TTL of STALE_TTL_SECONDS, so that they are not kept for long by whoever uses them. If the
+     * query has valid records, if no refresher was registered, or if its records expired more
+     * than the maximum stale time ago, returns an empty set.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale records for the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        if (refresher == null)
+            return Collections.emptySet();
+        long now = DNSClock.millis();
+        CacheEntry entry = null;
+        Collection<ResourceRecord> records;
+        if (store != null) {
+            records = new ArrayList<>();
+            store.read(node, now - maxStaleMillis, records, false);
+        } else if ((entry = cachedResults.get(node)) != null)
+            records = entry.records.values();
+        else
+            return Collections.emptySet();
+
+        Set<ResourceRecord> staleResults = new HashSet<>();
+        for (ResourceRecord record : records) {
+            if (record.isStillValid(now))
+                return Collections.emptySet();
+            if (record.isStillValid(now - maxStaleMillis))
+                staleResults.add(record.withTTL(STALE_TTL_SECONDS));
+        }
+        if (!staleResults.isEmpty())
+            scheduleRefresh(node, entry);
+        return staleResults;
+    }
+
+    /** Returns the negative result cached for a query, i.e., a record whose text result is
+     * NXDOMAIN if the queried name does not exist, or NODATA if it has no record of the queried
+     * type. Returns null if no valid negative result is cached for the query.
+     *
+     * @param node DNS query (host name and record type) to obtain a negative result.
+     * @return The negative result of the query, or null if there is none.
+     */
+    public ResourceRecord getNegativeResult(DNSNode node) {
+        if (store != null) {
+            ResourceRecord negative = store.getNegativeResult(node);
+            return negative == null || !negative.isStillValid() ? null : negative;
+        }
+        CacheEntry entry = cachedResults.get(node);
+        if (entry == null)
+            return null;
+        ResourceRecord negative = entry.negative;
+        if (negative == null || !negative.isStillValid())
+            return null;
+        policy.recordAccess(node);
+        return negative;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Caches a negative result for a query. The record's node is the query, its text result
+     * is NXDOMAIN or NODATA, and its TTL is the negative TTL given by the server. A negative
+     * result is discarded as soon as a record is added for the same query.
+     *
+     * @param negative Negative result obtained from a DNS server.
+     */
+    public void addNegativeResult(ResourceRecord negative) {
+        if (!negative.isStillValid()) return;
+
+        if (store != null) {
+            if (store.addNegativeResult(negative))
+                insertions.increment();
+            return;
+        }
+        List<DNSNode> victims = new ArrayList<>(0);
+        CacheEntry owner = cachedResults.compute(negative.getNode(), (node, entry) -> {
+            if (entry == null) {
+                entry = new CacheEntry();
+                victims.addAll(policy.recordInsertion(node));
+            }
+            if (entry.negative == null || entry.negative.expiresBefore(negative)) {
+                if (entry.negative == null)
+                    insertions.increment();
+                entry.negative = negative;
+            }
+            return entry;
+        });
+        expiry.schedule(negative, owner);
+        removeVictims(victims);
+    }
+
+    /** Registers the action used to refresh a query in the background. The action should
+     * resolve the query again without using its cached results, adding the new results to the
+     * cache. It is run on one of the cache's refresh threads, and never runs more than once at a
+     * time for the same query.
+     *
+     * @param refresher Action that resolves a query again, or null to disable refreshes.
+     */
+    public void setRefresher(Consumer<DNSNode> refresher) {
+        this.refresher = refresher;
+    }
+
+    /** Schedules a refresh of a node, unless one is already running.
+     *
+     * @param node  Node to refresh.
+     * @param entry Entry of the node, or null if records are kept off-heap.
+     */
+    private void scheduleRefresh(DNSNode node, CacheEntry entry) {
+        Consumer<DNSNode> action = refresher;
+        if (action == null || !(entry == null ? refreshingNodes.add(node) : entry.refreshing.compareAndSet(false, true)))
+            return;
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    action.accept(node);
+                } catch (RuntimeException e) {
+                    System.err.println("Cache refresh failed: " + e.getMessage());
+                } finally {
+                    if (entry == null) {
+                        store.resetHits(node);
+                        refreshingNodes.remove(node);
+                    } else {
+                        entry.hits.set(0);
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (entry == null)
+                refreshingNodes.remove(node);
+            else
+                entry.refreshing.set(false);
+        }
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -51,42 +314,359 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        if (record.getType() == RecordType.CNAME)
+            cnameChains.addLink(record);
+        if (store != null) {
+            if (store.addResult(record))
+                insertions.increment();
+            return;
+        }
+
+        boolean[] inserted = new boolean[1];
+        List<DNSNode> victims = new ArrayList<>(0);
+        CacheEntry owner = cachedResults.compute(record.getNode(), (node, entry) -> {
+            if (entry == null) {
+                entry = new CacheEntry();
+                victims.addAll(policy.recordInsertion(node));
+            }
+            entry.records.compute(record, (key, oldRecord) -> {
+                if (oldRecord == null) {
+                    inserted[0] = true;
+                    return record;
+                }
+                return oldRecord.expiresBefore(record) ? record : oldRecord;
+            });
+            entry.negative = null;
+            return entry;
+        });
+
+        // A record replacing an equivalent one is only scheduled once the one it replaced
+        // expires, so that each cached record has a single entry in the expiry queue.
+        if (inserted[0]) {
+            insertions.increment();
+            expiry.schedule(record, owner);
+        }
+        removeVictims(victims);
+    }
+
+    /** Removes an expired record from the cache, once it has been expired for longer than the
+     * maximum stale time. If it has already been replaced by an equivalent record that expires
+     * later, the replacement is scheduled to expire instead. Nodes left without records are
+     * removed as well. This is done atomically with respect to addResult for the same node.
+     *
+     * @param record Expired resource record.
+     */
+    private void removeExpired(ResourceRecord record) {
+        ResourceRecord[] replacement = new ResourceRecord[1];
+        CacheEntry owner = cachedResults.computeIfPresent(record.getNode(), (node, entry) -> {
+            if (entry.negative == record) {
+                entry.negative = null;
+                expirations.increment();
+            } else
+                entry.records.computeIfPresent(record, (key, current) -> {
+                    if (current == record) {
+                        expirations.increment();
+                        return null;
+                    }
+                    replacement[0] = current;
+                    return current;
+                });
+            if (!entry.records.isEmpty() || entry.negative != null)
+                return entry;
+            policy.recordRemoval(node);
+            entry.removed = true;
+            return null;
+        });
+        if (replacement[0] != null)
+            expiry.schedule(replacement[0], owner);
+    }
+
+    /** Removes nodes evicted by the policy. A victim is only removed if the policy does not
+     * track it anymore when its bin is locked: another thread may have removed it and inserted it
+     * again since it was selected, and that fresh entry must be kept. The records of removed
+     * victims are dropped from the expiry queue as well, so that evicted nodes do not stay in
+     * memory until their records expire.
+     */
+    private void removeVictims(List<DNSNode> victims) {
+        if (victims.isEmpty())
+            return;
+        int[] scheduled = new int[1];
+        for (DNSNode victim : victims)
+            cachedResults.computeIfPresent(victim, (node, entry) -> {
+                if (policy.contains(node))
+                    return entry;
+                scheduled[0] += entry.markRemoved();
+                return null;
+            });
+        expiry.removed(scheduled[0]);
+    }
+
+    /** Removes every record of the off-heap store that has been expired for longer than the
+     * maximum stale time, on the expiry thread.
+     */
+    private void sweepOffHeapStore() {
+        try {
+            expirations.add(store.removeExpired(DNSClock.millis() - maxStaleMillis));
+        } catch (RuntimeException e) {
+            System.err.println("Cache expiry failed: " + e.getMessage());
+        }
+    }
+
+    /** Removes every node and record from the cache.
+     */
+    void clear() {
+        cnameChains.clear();
+        if (store != null) {
+            store.clear();
+            return;
+        }
+        int[] scheduled = new int[1];
+        for (DNSNode node : cachedResults.keySet()) {
+            cachedResults.computeIfPresent(node, (key, entry) -> {
+                policy.recordRemoval(key);
+                scheduled[0] += entry.markRemoved();
+                return null;
+            });
         }
+        expiry.removed(scheduled[0]);
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns the maximum number of nodes (queries) kept in the cache.
+     */
+    public int getMaximumSize() {
+        return store != null ? store.getMaximumSize() : policy.getMaximumSize();
+    }
+
+    /** Changes the maximum number of nodes (queries) kept in the cache. If the cache currently
+     * holds more nodes, the excess is evicted as new nodes are added.
+     *
+     * @param maximumSize New maximum number of nodes, which must be positive.
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (store != null)
+            store.setMaximumSize(maximumSize);
+        else
+            policy.setMaximumSize(maximumSize);
+    }
+
+    /** Returns the number of nodes (queries) currently in the cache.
+     */
+    public int size() {
+        return store != null ? store.size() : cachedResults.size();
+    }
+
+    /** Returns the number of nodes evicted from the cache because it was full, since the
+     * application started. Nodes removed because their records expired are not counted.
+     */
+    public long getEvictionCount() {
+        return store != null ? store.getEvictionCount() : policy.getEvictionCount();
+    }
+
+    /** Returns the number of counted reads of cached results, i.e., of lookups requested by
+     * clients, that found at least one valid record.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of counted reads of cached results, i.e., of lookups requested by
+     * clients, that found no valid record.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the number of records (including negative results) added to the cache, not
+     * counting records that replaced an equivalent record.
+     */
+    public long getInsertionCount() {
+        return insertions.sum();
+    }
+
+    /** Returns the number of records (including negative results) removed from the cache
+     * because they expired.
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /** Resets the hit, miss, insertion and expiration counts.
+     */
+    void resetCounters() {
+        hits.reset();
+        misses.reset();
+        insertions.reset();
+        expirations.reset();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped, and
+     * queries without any valid record are not visited. Queries are visited in host name order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (Map.Entry<DNSNode, CacheEntry> entry : sortedEntries()) {
+            Set<ResourceRecord> records = new RecordSet(entry.getValue().records);
+            if (!records.isEmpty())
+                consumer.accept(entry.getKey(), records);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped. Queries
+     * are visited in host name order.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (Map.Entry<DNSNode, CacheEntry> entry : sortedEntries()) {
+            new RecordSet(entry.getValue().records).forEach(record -> consumer.accept(entry.getKey(), record));
+        }
+    }
+
+    /** Perform a specific action for each query with a valid negative result. Queries are
+     * visited in host name order.
+     *
+     * @param consumer Action to be performed for each query and its negative result.
+     */
+    public void forEachNegativeResult(BiConsumer<DNSNode, ResourceRecord> consumer) {
+        long now = DNSClock.millis();
+        for (Map.Entry<DNSNode, CacheEntry> entry : sortedEntries()) {
+            ResourceRecord negative = entry.getValue().negative;
+            if (negative != null && negative.isStillValid(now))
+                consumer.accept(entry.getKey(), negative);
+        }
+    }
+
+    /** Returns a sorted snapshot of the cached nodes, so that iterating over the whole cache
+     * gives the same ordering as before the cache was made concurrent. Nodes of the off-heap
+     * store are copied into temporary entries.
+     */
+    private Collection<Map.Entry<DNSNode, CacheEntry>> sortedEntries() {
+        if (store == null)
+            return new TreeMap<>(cachedResults).entrySet();
+        Map<DNSNode, CacheEntry> entries = new TreeMap<>();
+        store.forEach((node, records, negative) -> {
+            CacheEntry entry = new CacheEntry();
+            for (ResourceRecord record : records)
+                entry.records.put(record, record);
+            entry.negative = negative;
+            entries.put(node, entry);
+        });
+        return entries.entrySet();
+    }
+
+    /** Records cached for a single node, with its negative result if any, the number of times
+     * the node was read since it was last refreshed, whether a refresh of the node is currently
+     * running, and whether the node has left the cache.
+     */
+    private static class CacheEntry implements DNSCacheExpiry.Owner {
+
+        private final Map<ResourceRecord, ResourceRecord> records = new ConcurrentHashMap<>();
+        private volatile ResourceRecord negative;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile boolean removed;
+
+        @Override
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        /** Marks the entry as removed from the cache, and returns the number of its records that
+         * are still scheduled to expire.
+         */
+        private int markRemoved() {
+            removed = true;
+            return records.size() + (negative != null ? 1 : 0);
+        }
+
+        private boolean hasValidRecord(long now) {
+            for (ResourceRecord record : records.values())
+                if (record.isStillValid(now))
+                    return true;
+            return false;
+        }
+
+    }
+
+    /** Returns true if a valid record of a node has less than a fraction of its original TTL left.
+     */
+    private static boolean isDueForPrefetch(Collection<ResourceRecord> records, long now, double fraction) {
+        for (ResourceRecord record : records) {
+            long remainingMillis = record.getExpirationTime() - now;
+            if (remainingMillis > 0 && remainingMillis < fraction * record.getOriginalTTL() * 1000)
+                return true;
         }
+        return false;
     }
 
+    /** Read-only set view over the records cached for a single node. The view is backed by the
+     * record map values rather than its keys, since the map keeps the original key when an
+     * equivalent record with a later expiration replaces it. Records that have expired but
+     * were not yet removed by the expiry engine are skipped; checking them only requires a
+     * timestamp comparison.
+     */
+    private static class RecordSet extends AbstractSet<ResourceRecord> {
+
+        private final Map<ResourceRecord, ResourceRecord> records;
+
+        private RecordSet(Map<ResourceRecord, ResourceRecord> records) {
+            this.records = records;
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            Iterator<ResourceRecord> values = records.values().iterator();
+            long now = DNSClock.millis();
+            return new Iterator<ResourceRecord>() {
+                private ResourceRecord next = advance();
+
+                private ResourceRecord advance() {
+                    while (values.hasNext()) {
+                        ResourceRecord record = values.next();
+                        if (record.isStillValid(now))
+                            return record;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    ResourceRecord record = next;
+                    next = advance();
+                    return record;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            long now = DNSClock.millis();
+            for (ResourceRecord record : records.values())
+                if (record.isStillValid(now))
+                    size++;
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !iterator().hasNext();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            ResourceRecord record = records.get(o);
+            return record != null && record.isStillValid();
+        }
+    }
 }
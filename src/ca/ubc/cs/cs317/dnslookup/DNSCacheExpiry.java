@@ -0,0 +1,121 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/** Background expiry engine for the DNS cache. Records are kept in a min-heap ordered by their
+ * expiration time, and a single daemon thread periodically removes every record that has
+ * expired since the last sweep, handing it to a callback that removes it from the cache. Reads
+ * from the cache therefore never have to modify it, and expired records are evicted in batches
+ * instead of one lookup at a time. Records may be retained for some time after they expire, so
+ * that the cache can still serve them as stale results.
+ *
+ * Each record is scheduled with the {@link Owner} that holds it in the cache. When an owner
+ * leaves the cache before its records expire, e.g., because it was evicted, its records are
+ * skipped when they reach the head of the queue, and the queue is purged of them once they make
+ * up half of it, so the queue only grows with the records actually in the cache.
+ */
+class DNSCacheExpiry {
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final PriorityQueue<Scheduled> expirationQueue =
+            new PriorityQueue<>(Comparator.comparingLong(scheduled -> scheduled.record.getExpirationTime()));
+    private final Consumer<ResourceRecord> onExpired;
+    private final long retentionMillis;
+    private int removedCount;
+
+    /** Creates the expiry engine and starts its sweeper thread.
+     *
+     * @param onExpired       Action performed, on the sweeper thread, for each record that expires.
+     * @param retentionMillis Time records are retained after they expire before the action is
+     *                        performed for them.
+     */
+    DNSCacheExpiry(Consumer<ResourceRecord> onExpired, long retentionMillis) {
+        this.onExpired = onExpired;
+        this.retentionMillis = retentionMillis;
+        Thread sweeper = new Thread(this::sweepForever, "DNSCache-expiry");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /** Schedules a record to be expired once its TTL runs out.
+     *
+     * @param record Record that was just added to the cache.
+     * @param owner  Owner of the record in the cache.
+     */
+    void schedule(ResourceRecord record, Owner owner) {
+        synchronized (expirationQueue) {
+            expirationQueue.add(new Scheduled(record, owner));
+        }
+    }
+
+    /** Notes that an owner has left the cache with some records still scheduled. The owner must
+     * already report itself as removed. Once the records of removed owners make up half of the
+     * queue, they are all removed from it.
+     *
+     * @param count Number of records still scheduled for the owner.
+     */
+    void removed(int count) {
+        synchronized (expirationQueue) {
+            removedCount += count;
+            if (removedCount * 2 < expirationQueue.size())
+                return;
+            expirationQueue.removeIf(scheduled -> scheduled.owner.isRemoved());
+            removedCount = 0;
+        }
+    }
+
+    /** Removes every record whose retention ended at the specified time from the queue, and runs the
+     * expiry action for each of them. The action is run outside the queue lock so that records
+     * can keep being scheduled while a batch is processed. Records whose owner has left the cache
+     * are dropped without running the action.
+     *
+     * @param now Current time, as given by {@link DNSClock#millis()}.
+     */
+    void expireUntil(long now) {
+        while (true) {
+            Scheduled scheduled;
+            synchronized (expirationQueue) {
+                scheduled = expirationQueue.peek();
+                if (scheduled == null || scheduled.record.isStillValid(now - retentionMillis))
+                    return;
+                expirationQueue.poll();
+            }
+            if (!scheduled.owner.isRemoved())
+                onExpired.accept(scheduled.record);
+        }
+    }
+
+    private void sweepForever() {
+        while (true) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MILLIS);
+                expireUntil(DNSClock.millis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Cache expiry failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Holder of scheduled records in the cache, which tells whether it has left the cache.
+     */
+    interface Owner {
+        boolean isRemoved();
+    }
+
+    /** Record in the expiration queue, with the owner it was scheduled for.
+     */
+    private static class Scheduled {
+        private final ResourceRecord record;
+        private final Owner owner;
+
+        private Scheduled(ResourceRecord record, Owner owner) {
+            this.record = record;
+            this.owner = owner;
+        }
+    }
+}
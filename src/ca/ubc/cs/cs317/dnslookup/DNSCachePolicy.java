@@ -0,0 +1,148 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Segmented LRU eviction policy for the DNS cache. Each cached node (query) is one entry. New
+ * entries are placed in a probationary segment, and are only promoted to the protected segment
+ * once they are read again from the cache. When the cache is full, the least recently used
+ * probationary entry is evicted first, so popular entries (e.g., root and TLD name servers, or
+ * frequently queried hosts) survive a scan of many names that are only looked up once.
+ *
+ * Reads are recorded on a best-effort basis: if another thread is updating the policy at the
+ * same time, the access is simply not recorded, so that cache hits never wait on this lock.
+ */
+class DNSCachePolicy {
+
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final LinkedHashMap<DNSNode, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<DNSNode, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private volatile int maximumSize;
+
+    DNSCachePolicy(int maximumSize) {
+        setMaximumSize(maximumSize);
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        this.maximumSize = maximumSize;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return probation.size() + protectedSegment.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** Records a cache hit for a node. A probationary node is promoted to the protected segment,
+     * demoting the least recently used protected node if that segment is full.
+     *
+     * @param node Node that was read from the cache.
+     */
+    void recordAccess(DNSNode node) {
+        if (!lock.tryLock())
+            return;
+        try {
+            if (protectedSegment.get(node) != null)
+                return;
+            if (probation.remove(node) == null)
+                return;
+            protectedSegment.put(node, Boolean.TRUE);
+            int protectedCapacity = Math.max(1, (int) (maximumSize * PROTECTED_FRACTION));
+            while (protectedSegment.size() > protectedCapacity) {
+                DNSNode demoted = eldest(protectedSegment);
+                protectedSegment.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a new node was added to the cache, and selects the nodes that must be
+     * evicted to keep the cache within its maximum size. The node being added is never selected.
+     *
+     * @param node Node that was just added to the cache.
+     * @return A potentially empty list of nodes that should be removed from the cache.
+     */
+    List<DNSNode> recordInsertion(DNSNode node) {
+        lock.lock();
+        try {
+            if (protectedSegment.get(node) == null)
+                probation.put(node, Boolean.TRUE);
+
+            List<DNSNode> victims = Collections.emptyList();
+            while (probation.size() + protectedSegment.size() > maximumSize) {
+                DNSNode victim = eldestExcept(probation, node);
+                if (victim != null)
+                    probation.remove(victim);
+                else
+                    protectedSegment.remove(victim = eldestExcept(protectedSegment, node));
+                if (victims.isEmpty())
+                    victims = new ArrayList<>();
+                victims.add(victim);
+            }
+            evictionCount.addAndGet(victims.size());
+            return victims;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the policy currently tracks a node, i.e., if it was inserted and has not
+     * been evicted or removed since.
+     */
+    boolean contains(DNSNode node) {
+        lock.lock();
+        try {
+            return probation.containsKey(node) || protectedSegment.containsKey(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a node was removed from the cache for a reason other than eviction, e.g.,
+     * because all of its records expired.
+     *
+     * @param node Node that is no longer cached.
+     */
+    void recordRemoval(DNSNode node) {
+        lock.lock();
+        try {
+            if (probation.remove(node) == null)
+                protectedSegment.remove(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static DNSNode eldest(LinkedHashMap<DNSNode, Boolean> segment) {
+        return segment.keySet().iterator().next();
+    }
+
+    /** Returns the least recently used node of a segment other than the specified one, or null
+     * if there is none.
+     */
+    private static DNSNode eldestExcept(LinkedHashMap<DNSNode, Boolean> segment, DNSNode excluded) {
+        for (DNSNode node : segment.keySet())
+            if (!node.equals(excluded))
+                return node;
+        return null;
+    }
+}
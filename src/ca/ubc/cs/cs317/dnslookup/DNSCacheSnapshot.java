@@ -0,0 +1,192 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Saves the contents of the DNS cache to a file, and restores them when the application starts,
+ * so that a restarted resolver does not have to walk the DNS hierarchy again for every name.
+ *
+ * Snapshots use a compact binary format. The file starts with a header (magic number, format
+ * version, and number of records), followed by one entry per record:
+ * <ul>
+ *     <li>record type code (2 bytes);</li>
+ *     <li>absolute expiration time, in wall-clock milliseconds since the epoch (8 bytes);</li>
+ *     <li>host name, in DNS wire format (length-prefixed labels, no compression);</li>
+ *     <li>result kind (1 byte): 4 or 16 for an IPv4 or IPv6 address, followed by the address
+ *         bytes; NAME_RESULT for a domain name in wire format; or TEXT_RESULT for any other
+ *         text, followed by its length (2 bytes) and UTF-8 bytes.</li>
+ * </ul>
+ * Snapshots are written to a temporary file that then replaces the previous snapshot, so a
+ * crash while writing never leaves a partial snapshot behind. They are read through a
+ * memory-mapped buffer, and entries that expired while the application was not running are
+ * skipped.
+ */
+class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343;           // "DNSC"
+    private static final short VERSION = 1;
+    private static final int NAME_RESULT = 0;
+    private static final int TEXT_RESULT = 0xFF;
+
+    private final DNSCache cache;
+    private final Path file;
+
+    DNSCacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /** Restores the snapshot in the specified file, if any, then saves the cache to that file
+     * periodically and when the application exits.
+     *
+     * @param file            Snapshot file.
+     * @param intervalSeconds Time between periodic snapshots, in seconds.
+     */
+    static void start(Path file, long intervalSeconds) {
+        DNSCacheSnapshot snapshot = new DNSCacheSnapshot(DNSCache.getInstance(), file);
+        if (Files.exists(file)) {
+            try {
+                long start = System.nanoTime();
+                int restored = snapshot.load();
+                System.out.printf("Restored %d cached records from %s in %.1f ms\n", restored, file,
+                        (System.nanoTime() - start) / 1e6);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not restore cache snapshot (" + e.getMessage() + ").");
+            }
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DNSCache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(snapshot::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            scheduler.shutdownNow();
+            snapshot.saveQuietly();
+        }, "DNSCache-snapshot-shutdown"));
+    }
+
+    private synchronized void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /** Writes every valid record in the cache to the snapshot file.
+     *
+     * @return The number of records written.
+     * @throws IOException If the snapshot could not be written.
+     */
+    int save() throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int[] count = new int[1];
+        IOException[] failure = new IOException[1];
+        cache.forEachRecord((node, record) -> {
+            if (failure[0] != null)
+                return;
+            try {
+                writeRecord(out, record);
+                count[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+
+        try (DataOutputStream snapshotOut = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            snapshotOut.writeInt(MAGIC);
+            snapshotOut.writeShort(VERSION);
+            snapshotOut.writeInt(count[0]);
+            entries.writeTo(snapshotOut);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /** Adds every record of the snapshot file that has not expired yet to the cache.
+     *
+     * @return The number of records restored.
+     * @throws IOException If the snapshot could not be read or has an unknown format.
+     */
+    int load() throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < 10 || data.getInt(0) != MAGIC)
+            throw new IOException("not a cache snapshot");
+        if (data.getShort(4) != VERSION)
+            throw new IOException("unsupported snapshot version " + data.getShort(4));
+
+        int count = data.getInt(6);
+        int offset = 10;
+        int restored = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            RecordType type = RecordType.getByCode(DNSWireFormat.readUnsignedShort(data, offset));
+            long expirationTime = data.getLong(offset + 2);
+            offset += 10;
+            DNSNode node = DNSNameTable.getInstance().intern(data, offset).getNode(type);
+            offset = DNSWireFormat.skipName(data, offset);
+
+            int kind = DNSWireFormat.readUnsignedByte(data, offset++);
+            String textResult = null;
+            InetAddress inetResult = null;
+            if (kind == NAME_RESULT) {
+                textResult = DNSNameTable.getInstance().intern(data, offset).getName();
+                offset = DNSWireFormat.skipName(data, offset);
+            } else if (kind == TEXT_RESULT) {
+                byte[] text = new byte[DNSWireFormat.readUnsignedShort(data, offset)];
+                offset += 2;
+                for (int j = 0; j < text.length; j++)
+                    text[j] = data.get(offset++);
+                textResult = new String(text, StandardCharsets.UTF_8);
+            } else {
+                byte[] address = new byte[kind];
+                for (int j = 0; j < kind; j++)
+                    address[j] = data.get(offset++);
+                inetResult = InetAddress.getByAddress(address);
+            }
+
+            if (expirationTime > now) {
+                cache.addResult(ResourceRecord.expiringAt(node, expirationTime, textResult, inetResult));
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    private static void writeRecord(DataOutputStream out, ResourceRecord record) throws IOException {
+        out.writeShort(record.getType().getCode());
+        out.writeLong(DNSClock.toWallClock(record.getExpirationTime()));
+        out.write(DNSNameTable.getInstance().intern(record.getHostName()).getWireEncoding());
+
+        if (record.getInetResult() != null) {
+            byte[] address = record.getInetResult().getAddress();
+            out.writeByte(address.length);
+            out.write(address);
+        } else if (record.getType() == RecordType.NS || record.getType() == RecordType.CNAME) {
+            out.writeByte(NAME_RESULT);
+            out.write(DNSNameTable.getInstance().intern(record.getTextResult()).getWireEncoding());
+        } else {
+            byte[] text = record.getTextResult().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(TEXT_RESULT);
+            out.writeShort(text.length);
+            out.write(text);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Coarse monotonic clock used for record expiration. The time is kept in a volatile field that
+ * a single ticker thread updates every TICK_MILLIS, so reading the clock costs a field read,
+ * instead of a system call per record checked. It is derived from System.nanoTime, so expiration
+ * is not affected when the wall clock is stepped, e.g., by NTP.
+ *
+ * Clock values are milliseconds since an arbitrary origin, and only meaningful within the
+ * running process; times that outlive it, such as expiration times saved in a cache snapshot,
+ * are converted to and from wall-clock time.
+ */
+final class DNSClock {
+
+    private static final long TICK_MILLIS = 10;
+
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static volatile long now = read();
+
+    static {
+        Thread ticker = new Thread(DNSClock::tickForever, "DNSClock-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private DNSClock() {
+    }
+
+    /** Returns the current time, in milliseconds since the origin of the clock. The value is at
+     * most TICK_MILLIS behind the actual time, and never decreases.
+     */
+    static long millis() {
+        return now;
+    }
+
+    /** Converts a time of this clock to wall-clock time, in milliseconds since the epoch.
+     */
+    static long toWallClock(long millis) {
+        return millis - read() + System.currentTimeMillis();
+    }
+
+    /** Converts a wall-clock time, in milliseconds since the epoch, to a time of this clock.
+     */
+    static long fromWallClock(long wallClockMillis) {
+        return wallClockMillis - System.currentTimeMillis() + read();
+    }
+
+    private static long read() {
+        return (System.nanoTime() - ORIGIN_NANOS) / 1000000;
+    }
+
+    private static void tickForever() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            now = read();
+        }
+    }
+}
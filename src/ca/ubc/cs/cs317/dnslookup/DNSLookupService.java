@@ -3,7 +3,11 @@ package ca.ubc.cs.cs317.dnslookup;
 import java.io.Console;
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Math.abs;
 
@@ -11,14 +15,31 @@ public class DNSLookupService {
 
     private static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL = 10;
-
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
-    private static InetAddress topLevelRootServer;
-    private static Map<String, ArrayList<String>> HostNameToCNameMap;// Key will be host name for a node, Value will be a list of CNames that points to Key
+    private static final int MAX_QUERY_ATTEMPTS = 3;
+    private static final int RCODE_FORMAT_ERROR = 1;
+
+    private static final int DEFAULT_BATCH_PARALLELISM = 64;
+    private static final int DEFAULT_NS_RESOLVER_THREADS = 16;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+    private static final String DEFAULT_SERVE_ADDRESS = "127.0.0.1";
+    private static final int DEFAULT_SERVE_WORKERS = 64;
+
+    private static volatile InetAddress rootServer;
+    private static UDPTransport transport;
+    private static TCPTransport tcpTransport = new TCPTransport();
+    private static volatile int dnsPort = DEFAULT_DNS_PORT;
+    // Name errors are not reported when serving, as clients already get them as NXDOMAIN responses
+    private static volatile boolean reportNameErrors = true;
 
     private static DNSCache cache = DNSCache.getInstance();
+    private static CNameChainIndex cnameChains = CNameChainIndex.getInstance();
+    private static NameServerTable nameServers = NameServerTable.getInstance();
+    private static DNSStats stats = DNSStats.getInstance();
+    private static DNSTracer tracer = DNSTracer.getInstance();
+    private static ThreadLocal<DNSNode> refreshingNode = new ThreadLocal<>();
+    private static ExecutorService nameServerResolver = newLookupExecutor("DNS-ns-resolver",
+            Math.max(1, Integer.getInteger("dnslookup.nsResolver.threads", DEFAULT_NS_RESOLVER_THREADS)));
+    private static Map<InFlightKey, CompletableFuture<DNSResponseParser>> inFlightQueries = new ConcurrentHashMap<>();
 
     private static Random random = new Random();
 
@@ -28,17 +49,18 @@ public class DNSLookupService {
      * @param args list of arguments specified in the command line.
      */
     public static void main(String[] args) {
-        HostNameToCNameMap = new HashMap<>();
-        if (args.length != 1) {
+        if (args.length != 1 && !(args.length >= 3 && args.length <= 4 && args[1].equalsIgnoreCase("-batch"))
+                && !(args.length >= 2 && args.length <= 3 && args[1].equalsIgnoreCase("-serve"))) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-batch file [parallelism] | -serve [port]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("If -batch is specified, all lookups in file are resolved and the program exits.");
+            System.err.println("If -serve is specified, the program runs as a recursive resolver answering DNS queries on port (default 53).");
             System.exit(1);
         }
 
         try {
             rootServer = InetAddress.getByName(args[0]);
-            topLevelRootServer = InetAddress.getByName(args[0]);
             System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
@@ -46,12 +68,30 @@ public class DNSLookupService {
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            transport = new UDPTransport();
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        cache.setRefresher(DNSLookupService::refresh);
+        DNSStats.register();
+
+        // Restore and periodically save the cache if a snapshot file is configured
+        String snapshotFile = System.getProperty("dnslookup.snapshot");
+        if (snapshotFile != null)
+            DNSCacheSnapshot.start(Paths.get(snapshotFile),
+                    Long.getLong("dnslookup.snapshot.intervalSeconds", DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("-serve")) {
+            runServer(args.length == 3 ? args[2] : null);
+            closeTransport();
+            return;
+        }
+        if (args.length > 1) {
+            runBatch(Arrays.copyOfRange(args, 1, args.length));
+            closeTransport();
+            return;
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -86,7 +126,6 @@ public class DNSLookupService {
                 if (commandArgs.length == 2) {
                     try {
                         rootServer = InetAddress.getByName(commandArgs[1]);
-                        topLevelRootServer = InetAddress.getByName(commandArgs[1]);
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
@@ -97,19 +136,23 @@ public class DNSLookupService {
                     continue;
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
+                // TRACE: Turn trace setting on, off or to record only, or print recorded trace
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("dump")) {
+                    tracer.flush();
+                } else if (commandArgs.length == 2) {
                     if (commandArgs[1].equalsIgnoreCase("on"))
-                        verboseTracing = true;
+                        tracer.setMode(DNSTracer.Mode.ON);
                     else if (commandArgs[1].equalsIgnoreCase("off"))
-                        verboseTracing = false;
+                        tracer.setMode(DNSTracer.Mode.OFF);
+                    else if (commandArgs[1].equalsIgnoreCase("record"))
+                        tracer.setMode(DNSTracer.Mode.RECORD);
                     else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                        System.err.println("Invalid call. Format:\n\ttrace on|off|record|dump");
                         continue;
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
+                    System.out.println("Verbose tracing is now: " + tracer.getMode());
                 } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    System.err.println("Invalid call. Format:\n\ttrace on|off|record|dump");
                     continue;
                 }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
@@ -130,25 +173,257 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all lookups listed in a file concurrently
+                if (commandArgs.length < 2 || commandArgs.length > 3) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [parallelism]");
+                    continue;
+                }
+                runBatch(commandArgs);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+                cache.forEachNegativeResult((node, negativeResult) ->
+                        printResults(node, Collections.singleton(negativeResult)));
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print latency histograms and counters
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("reset"))
+                    stats.reset();
+                else if (commandArgs.length == 1)
+                    printStats();
+                else {
+                    System.err.println("Invalid call. Format:\n\tstats [reset]");
+                    continue;
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\ttrace on|off|record|dump");
                 System.err.println("\tserver IP");
+                System.err.println("\tbatch file [parallelism]");
                 System.err.println("\tdump");
+                System.err.println("\tstats [reset]");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        closeTransport();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Runs the resolver as a daemon answering DNS queries over UDP, until the process is stopped.
+     * The server listens on the address given by the dnslookup.serve.address system property
+     * (default 127.0.0.1, so only local clients are served), and resolves up to
+     * dnslookup.serve.workers queries at the same time.
+     *
+     * @param portArg Port to listen on, or null for the default DNS port.
+     */
+    private static void runServer(String portArg) {
+        int port = DEFAULT_DNS_PORT;
+        if (portArg != null) {
+            try {
+                port = Integer.parseInt(portArg);
+            } catch (NumberFormatException ex) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                System.err.println("Invalid port: " + portArg);
+                return;
+            }
+        }
+
+        reportNameErrors = false;
+        InetSocketAddress address = new InetSocketAddress(
+                System.getProperty("dnslookup.serve.address", DEFAULT_SERVE_ADDRESS), port);
+        try (DNSServer server = new DNSServer(address,
+                Integer.getInteger("dnslookup.serve.workers", DEFAULT_SERVE_WORKERS), DNSLookupService::resolve)) {
+            System.out.println("Serving DNS queries on " + server.getAddress());
+            server.awaitTermination();
+        } catch (IOException ex) {
+            System.err.println("Could not start DNS server (" + ex.getMessage() + ").");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeTransport() {
+        tracer.setMode(DNSTracer.Mode.OFF);
+        tcpTransport.close();
+        try {
+            transport.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close transport: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Resolves every lookup listed in a file concurrently, printing the results of each lookup as
+     * soon as it completes, followed by a summary of the throughput and latency of all lookups.
+     * Each line of the file has the format "hostName [type]"; empty lines and comments are ignored.
+     * Lookups run on virtual threads when the JVM supports them (Java 21 or later), and otherwise
+     * on a pool of as many platform threads as lookups running at the same time.
+     *
+     * @param batchArgs Command arguments: the command name, the file name and an optional
+     *                  maximum number of lookups running at the same time.
+     */
+    private static void runBatch(String[] batchArgs) {
+        int parallelism = DEFAULT_BATCH_PARALLELISM;
+        if (batchArgs.length == 3) {
+            try {
+                parallelism = Integer.parseInt(batchArgs[2]);
+            } catch (NumberFormatException ex) {
+                parallelism = 0;
+            }
+            if (parallelism < 1) {
+                System.err.println("Invalid parallelism: " + batchArgs[2]);
+                return;
+            }
+        }
+
+        List<DNSNode> nodes = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(batchArgs[1]))) {
+                line = line.trim().split("#", 2)[0].trim();
+                if (line.isEmpty()) continue;
+                String[] lineArgs = line.split("\\s+");
+                try {
+                    if (lineArgs.length == 1)
+                        nodes.add(new DNSNode(lineArgs[0], RecordType.A));
+                    else if (lineArgs.length == 2)
+                        nodes.add(new DNSNode(lineArgs[0], RecordType.valueOf(lineArgs[1].toUpperCase())));
+                    else
+                        System.err.println("Invalid lookup (format is hostName [type]): " + line);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type in lookup: " + line);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Could not read batch file (" + ex.getMessage() + ").");
+            return;
+        }
+
+        long[] latencies = new long[nodes.size()];
+        AtomicInteger unresolved = new AtomicInteger();
+        Semaphore permits = new Semaphore(parallelism);
+        ExecutorService executor = newLookupExecutor("DNS-batch", parallelism);
+        long batchStart = System.nanoTime();
+        try {
+            for (int i = 0; i < nodes.size(); i++) {
+                DNSNode node = nodes.get(i);
+                int index = i;
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        long start = System.nanoTime();
+                        Set<ResourceRecord> results = lookup(node);
+                        latencies[index] = System.nanoTime() - start;
+                        if (results.isEmpty())
+                            unresolved.incrementAndGet();
+                        printResults(node, results);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            permits.acquireUninterruptibly(parallelism);
+        } finally {
+            executor.shutdown();
+        }
+        long batchNanos = System.nanoTime() - batchStart;
+
+        Arrays.sort(latencies);
+        System.out.printf("Resolved %d lookups (%d without results) in %.3f s: %.1f lookups/s\n",
+                latencies.length, unresolved.get(), batchNanos / 1e9,
+                latencies.length / Math.max(batchNanos / 1e9, 1e-9));
+        if (latencies.length > 0)
+            System.out.printf("Latency (ms): mean %.3f  p50 %.3f  p99 %.3f  max %.3f\n",
+                    Arrays.stream(latencies).average().orElse(0) / 1e6,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    latencies[latencies.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sortedValues, double fraction) {
+        int index = (int) Math.ceil(fraction * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    /**
+     * Creates an executor used to run lookups, e.g., batch lookups. Virtual threads are used if
+     * the running JVM provides them (Java 21 or later); since the project targets older Java
+     * versions, they are looked up reflectively. Otherwise, lookups run on a pool of at most
+     * maxThreads platform threads, and a task submitted while every thread is busy runs on the
+     * submitting thread instead, so that lookups waiting on nested lookups cannot exhaust the
+     * pool and deadlock.
+     *
+     * @param threadName Name of the platform threads, if virtual threads are not available.
+     * @param maxThreads Maximum number of platform threads.
+     */
+    private static ExecutorService newLookupExecutor(String threadName, int maxThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Prepares the resolver to be used without the command line interface, e.g., by benchmarks
+     * or by other components. Any previously opened transport is closed.
+     *
+     * @param root Address of the root server lookups start at when no enclosing zone is cached.
+     * @param port Port name servers are queried on (normally 53).
+     * @throws IOException If the transport could not be opened.
+     */
+    static void initialize(InetAddress root, int port) throws IOException {
+        if (transport != null)
+            transport.close();
+        tcpTransport.close();
+        tcpTransport = new TCPTransport();
+        rootServer = root;
+        dnsPort = port;
+        transport = new UDPTransport();
+        cache.setRefresher(DNSLookupService::refresh);
+    }
+
+    /**
+     * Resolves a node again, starting at the closest cached zone cut, without using the results
+     * currently cached for it, so that the cache gets fresh results. The cache calls this method on a
+     * background thread for popular nodes about to expire, and for expired nodes being served
+     * stale. Results cached for other nodes (e.g., name server addresses) are still used.
+     *
+     * @param node Host and record type to be resolved again.
+     */
+    private static void refresh(DNSNode node) {
+        refreshingNode.set(node);
+        try {
+            getResults(node, 0);
+        } finally {
+            refreshingNode.remove();
+        }
+    }
+
+    /**
+     * Finds all results for a node, starting at the name servers of the closest zone enclosing
+     * it that is cached, or at the root server if there is none. The resolver must have been
+     * initialized first.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the query.
+     */
+    static Set<ResourceRecord> resolve(DNSNode node) {
+        return lookup(node);
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -157,7 +432,38 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        Set<ResourceRecord> results = lookup(node);
+        // Print the trace of the lookup before its results, as the drainer may not have printed it yet
+        if (tracer.getMode() == DNSTracer.Mode.ON)
+            tracer.flush();
+        printResults(node, results);
+    }
+
+    /**
+     * Finds all results for a node, starting at the closest known name servers, and records the
+     * latency of the whole lookup. Results already cached are returned right away, and the lookup
+     * is counted once as a cache hit or miss.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the query.
+     */
+    private static Set<ResourceRecord> lookup(DNSNode node) {
+        long start = System.nanoTime();
+        try {
+            // This is the only read counted as a cache hit or miss; the reads made while resolving
+            // the node (name servers, their addresses, CNAME links) are not
+            String canonicalName = cnameChains.resolve(node.getHostName());
+            Set<ResourceRecord> cachedResults = cache.getCachedResults(
+                    canonicalName == null ? node : DNSNode.of(canonicalName, node.getType()));
+            if (!cachedResults.isEmpty()) {
+                if (canonicalName != null)
+                    stats.recordCNameIndirection();
+                return cachedResults;
+            }
+            return getResults(node, 0);
+        } finally {
+            stats.recordLookup(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -172,21 +478,90 @@ public class DNSLookupService {
      * @return A set of resource records corresponding to the specific query requested.
      */
     private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+        return getResults(node, indirectionLevel, findClosestNameServers(node.getHostName()));
+    }
+
+    /**
+     * Finds the name servers closest to a name that are known from the cache, i.e., the servers
+     * of the deepest zone enclosing the name that has valid NS records and at least one valid
+     * name server address in the cache. Searches starting at these servers skip the referrals
+     * from the root and the zones above them. If no enclosing zone is cached, returns the root
+     * server.
+     *
+     * @param hostName Name being searched.
+     * @return Addresses of the closest known name servers, best first.
+     */
+    private static List<InetAddress> findClosestNameServers(String hostName) {
+        String zone = hostName;
+        while (!zone.isEmpty()) {
+            List<String> nsDomainNames = new ArrayList<>();
+            for (ResourceRecord record : cache.peekCachedResults(DNSNode.of(zone, RecordType.NS)))
+                nsDomainNames.add(record.getTextResult());
+            List<InetAddress> addresses = getCachedNameServerAddresses(nsDomainNames);
+            if (!addresses.isEmpty())
+                return nameServers.rank(addresses);
+
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return Collections.singletonList(rootServer);
+    }
+
+    /**
+     * Finds all the result for a specific node, starting the search at a specific server.
+     * The server is passed along explicitly, rather than kept in shared state, so that several
+     * lookups may run at the same time.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     * @param server           Address of the server the search starts at.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, InetAddress server) {
+        return getResults(node, indirectionLevel, Collections.singletonList(server));
+    }
+
+    /**
+     * Finds all the result for a specific node, starting the search at any of several equivalent
+     * servers, e.g., all name servers of a zone. Queries go to the first server, and only go to
+     * the next ones if it does not answer.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     * @param servers          Addresses of the servers the search starts at, best first.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, List<InetAddress> servers) {
         if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
             return Collections.emptySet();
         } else {
+            boolean refreshing = node.equals(refreshingNode.get());
+            if (!refreshing) {
+                // Names known not to exist, or not to have this record type, are not queried again
+                ResourceRecord negativeResult = cache.getNegativeResult(node);
+                if (negativeResult != null) {
+                    if (reportNameErrors && negativeResult.getTextResult().equals(DNSCache.NXDOMAIN))
+                        System.err.println(DNSResponseParser.NAME_ERROR_MESSAGE);
+                    return Collections.emptySet();
+                }
+                // Recently expired results are returned right away while they are refreshed
+                Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+                if (!staleResults.isEmpty())
+                    return staleResults;
+            }
             try {
-                Set<ResourceRecord> cacheResults = checkCacheForNode(node, indirectionLevel);
+                Set<ResourceRecord> cacheResults = refreshing ? Collections.emptySet()
+                        : checkCacheForNode(node, indirectionLevel);
                 if (cacheResults.size() > 0) {
                     //do nothing, the answer is in the cache and will be returned at the end!
                 } else {
                     // send and receive query
-                    DNSResponseParser dnsResponseParser = sendAndReceiveQuery(node, rootServer);
+                    DNSResponseParser dnsResponseParser = sendAndReceiveQuery(node, servers);
                     if (! (dnsResponseParser == null)) {
                         retreiveResultsFromQuery(node, indirectionLevel, dnsResponseParser);
                     } else{
-                        throw new SocketTimeoutException("The socket has timed out and has been retried 1x");
+                        throw new SocketTimeoutException("The query has timed out on every attempt");
                     }
                 }
             }catch(SocketTimeoutException e) {
@@ -196,35 +571,29 @@ public class DNSLookupService {
                 System.err.println("SocketException: " + e.getMessage());
                 return Collections.emptySet();
             }catch(Exception e) {
-                System.err.println(e.getMessage());
+                if (reportNameErrors || !DNSResponseParser.NAME_ERROR_MESSAGE.equals(e.getMessage()))
+                    System.err.println(e.getMessage());
                 return Collections.emptySet();
             }
         }
-        try {
-            DNSNode mostReleventCname = findLastCNameInChainFromCache(node);
-            if(mostReleventCname == null){          // the node does not have a Cname, return the cache for the original node
-                return cache.getCachedResults(node);
-            } else {                                // the node has a Cname, we need the results for its canonical name, not its originally searched for name
-                return cache.getCachedResults(mostReleventCname);
-            }
-        } catch (Exception e){
-            System.err.println(e.getMessage());
-            return Collections.emptySet();
+        String canonicalName = cnameChains.resolve(node.getHostName());
+        if(canonicalName == null){          // the node does not have a Cname, return the cache for the original node
+            return cache.peekCachedResults(node);
+        } else {                            // the node has a Cname, we need the results for its canonical name, not its originally searched for name
+            return cache.peekCachedResults(DNSNode.of(canonicalName, node.getType()));
         }
     }
 
     public static Set<ResourceRecord> checkCacheForNode(DNSNode node, int indirectionLevel) throws Exception{
-        Set<ResourceRecord> cacheResults = Collections.emptySet();
         // Return from cache first if theres anything in the cache
-        if (cache.getCachedResults(node).size() > 0) {
-            cacheResults = cache.getCachedResults(node);
-        }
-        // Check cache to see if a CNAME points to hostName of node
-        else if (HostNameToCNameMap.containsKey(node.getHostName())) { // If some CNameNode points to Host
-//            String cNameThatPointsToNode = HostNameToCNameMap.get(node.getHostName()).get(0);
-//            DNSNode cNameNode = new DNSNode(cNameThatPointsToNode, node.getType());
-            DNSNode lastCNameNode = findLastCNameInChainFromCache(node);
-            cacheResults = getResults(lastCNameNode, ++indirectionLevel);
+        Set<ResourceRecord> cacheResults = cache.peekCachedResults(node);
+        // Check cache to see if hostName of node is an alias, and continue with its canonical name
+        if (cacheResults.isEmpty()) {
+            String canonicalName = cnameChains.resolve(node.getHostName());
+            if (canonicalName != null) {
+                stats.recordCNameIndirection();
+                cacheResults = getResults(DNSNode.of(canonicalName, node.getType()), ++indirectionLevel);
+            }
         }
         return cacheResults;
     }
@@ -243,7 +612,7 @@ public class DNSLookupService {
     //TODO This is still retuning a Set<ResourceRecord> just to maintain that we find some sort of answer in this function and to NOT check nameservers
     public static Set<ResourceRecord> retreiveResultsFromAuthoritativeAnswer(DNSNode node, int indirectionLevel) throws Exception{
         Set<ResourceRecord> results = Collections.emptySet();
-        Set<ResourceRecord> answersSet = cache.getCachedResults(node);
+        Set<ResourceRecord> answersSet = cache.peekCachedResults(node);
         ArrayList<ResourceRecord> answers = new ArrayList<>();
         answers.addAll(answersSet);
 
@@ -252,28 +621,23 @@ public class DNSLookupService {
         for (int i = 0; i< answers.size(); i++) {
             ResourceRecord answer = answers.get(i);
 
-            if (    answer.getType() == node.getType()
-                &&  answer.getHostName().equals(node.getHostName())) {
+            // Compare nodes rather than host names, which may differ in case or a trailing dot
+            if (answer.getNode().equals(node)) {
                 correctAnswerTypeFound = true;
             }
         }
 
         if (correctAnswerTypeFound) {
-            results = cache.getCachedResults(node);
+            results = answersSet;
         } else {
-            ArrayList<ResourceRecord> cNameAnswers = new ArrayList<>();
-            cNameAnswers.addAll(cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME))); // Make this node into a CName to see if it's cached
-            if( cNameAnswers.size() > 0 ) {
+            String canonicalName = cnameChains.resolve(node.getHostName()); // Check if the answer was a CNAME for this node
+            if( canonicalName != null ) {
                 // We found only CNAMEs when expecting some other type
-                ResourceRecord cNameNodeRR = cNameAnswers.get(0); // First node from cache
+                DNSNode nextNodeToQuery = DNSNode.of(canonicalName, node.getType()); // Set type of query to send to that of orignal node and not CNAME
 
-                // Find last cached CNameInChainFromCache
-                DNSNode lastCNameNode = findLastCNameInChainFromCache(new DNSNode(cNameNodeRR.getHostName(), cNameNodeRR.getType()));
-                DNSNode nextNodeToQuery = new DNSNode(lastCNameNode.getHostName(), node.getType()); // Set type of query to send to that of orignal node and not CNAME
-
-                rootServer = topLevelRootServer;                             // Reset rootserver to original query parameter
-                getResults(nextNodeToQuery, ++indirectionLevel);              // restart search with new Cname as hostName and type as original query
-                results = cache.getCachedResults(nextNodeToQuery);
+                stats.recordCNameIndirection();
+                getResults(nextNodeToQuery, ++indirectionLevel);              // restart search from the closest cached zone with new Cname as hostName and type as original query
+                results = cache.peekCachedResults(nextNodeToQuery);
             }
         }
         return results;
@@ -281,34 +645,91 @@ public class DNSLookupService {
 
     private static void retreiveResultsFromNameServers(DNSNode node, int indirectionLevel, DNSResponseParser dnsResponseParser) {
         ArrayList<String> nsNamesFromThisResponse = dnsResponseParser.getResponseNameServerDomainNames();
+        if (!nsNamesFromThisResponse.isEmpty())
+            stats.recordReferral();
+
+        // If addresses are already known for some name servers (e.g., from glue records), query
+        // the one expected to answer fastest
+        List<InetAddress> knownAddresses = getCachedNameServerAddresses(nsNamesFromThisResponse);
+        if (!knownAddresses.isEmpty()) {
+            getResults(node, indirectionLevel, nameServers.rank(knownAddresses));
+            return;
+        }
 
         // Try to see if at least one NS has an IP Address that can be resolved
-        for (int i = 0; i < nsNamesFromThisResponse.size(); i++) {
-            InetAddress NSIPAddress = resolveNSInetAddr(nsNamesFromThisResponse.get(i), indirectionLevel);
-            if (NSIPAddress != null) {
-                // If an iP Address is found, start a new query to update cache
-                // Change rootServer to NSIPAddress
-                InetAddress tmpRootServer = rootServer;
-                rootServer = NSIPAddress;
-                getResults(node, indirectionLevel);
-                rootServer = tmpRootServer; //Restore orignial rootServer
-                break;
-            }
+        InetAddress NSIPAddress = resolveFirstNSInetAddr(nsNamesFromThisResponse, indirectionLevel);
+        if (NSIPAddress != null) {
+            // If an iP Address is found, start a new query from NSIPAddress to update cache,
+            // falling back to the other name servers resolved by then
+            List<InetAddress> servers = new ArrayList<>();
+            servers.add(NSIPAddress);
+            for (InetAddress address : nameServers.rank(getCachedNameServerAddresses(nsNamesFromThisResponse)))
+                if (!address.equals(NSIPAddress))
+                    servers.add(address);
+            getResults(node, indirectionLevel, servers);
+        }
+    }
+
+    /**
+     * Resolves the addresses of several name servers at the same time, and returns the first
+     * address found. Resolutions still running at that point are left to finish in the
+     * background, so that the addresses they find are cached for later referrals. At most
+     * dnslookup.nsResolver.threads (default DEFAULT_NS_RESOLVER_THREADS) resolutions run on their
+     * own thread; further ones run on the calling thread.
+     *
+     * @param nsDomainNames    Host names of the name servers.
+     * @param indirectionLevel Indirection level of the lookup needing the name servers.
+     * @return The first name server address found, or null if none of them could be resolved.
+     */
+    private static InetAddress resolveFirstNSInetAddr(List<String> nsDomainNames, int indirectionLevel) {
+        if (nsDomainNames.isEmpty())
+            return null;
+        if (nsDomainNames.size() == 1)
+            return resolveNSInetAddr(nsDomainNames.get(0), indirectionLevel);
+
+        CompletableFuture<InetAddress> firstAddress = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(nsDomainNames.size());
+        for (String nsDomainName : nsDomainNames) {
+            CompletableFuture.supplyAsync(() -> resolveNSInetAddr(nsDomainName, indirectionLevel), nameServerResolver)
+                    .whenComplete((address, error) -> {
+                        if (address != null)
+                            firstAddress.complete(address);
+                        if (remaining.decrementAndGet() == 0)
+                            firstAddress.complete(null);
+                    });
         }
+        try {
+            return firstAddress.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns every IPv4 address currently cached for a list of name servers.
+     *
+     * @param nsDomainNames Host names of the name servers.
+     * @return A potentially empty list of name server addresses.
+     */
+    private static List<InetAddress> getCachedNameServerAddresses(List<String> nsDomainNames) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String nsDomainName : nsDomainNames)
+            for (ResourceRecord record : cache.peekCachedResults(DNSNode.of(nsDomainName, RecordType.A)))
+                addresses.add(record.getInetResult());
+        return addresses;
     }
 
     public static InetAddress resolveNSInetAddr(String nsDomainName, int indirectionLevel) {
         // Check if cache has IPV4 Address for bufferDomainName NS
         InetAddress nsIPAddr = null;
-        DNSNode nsNode = new DNSNode(nsDomainName, RecordType.A);
+        DNSNode nsNode = DNSNode.of(nsDomainName, RecordType.A);
         ArrayList<ResourceRecord> nameServerAddresses = new ArrayList<>();
-        nameServerAddresses.addAll(cache.getCachedResults(nsNode));
+        nameServerAddresses.addAll(cache.peekCachedResults(nsNode));
 
         if (nameServerAddresses.size() > 0) {
             nsIPAddr = nameServerAddresses.get(0).getInetResult();
         } else {
-            // Cache does not have address for NS, HENCE make new query to resolve NS
-            rootServer = topLevelRootServer;
+            // Cache does not have address for NS, HENCE make new query from the closest cached zone to resolve NS
             Set<ResourceRecord> IPAddressesFound = getResults(nsNode, indirectionLevel);
             ArrayList<ResourceRecord> IPAddressList = new ArrayList<>();
             IPAddressList.addAll(IPAddressesFound);
@@ -321,90 +742,143 @@ public class DNSLookupService {
     }
 
     /**
-     * Query is sent in iterative mode, and packet is received.
-     * If there is a socketTimeout exception, then we retry the same query. If there is an exception again, we return null.
+     * Sends a query and waits for its response, sharing the query with other lookups. If the same
+     * node is already being queried from the same server, no new query is sent: the response (or
+     * failure) of the outstanding query is returned instead, once it is available. The response
+     * has already been parsed and its records cached, so callers only read from the returned
+     * parser.
      *
-     * @param node        Host name and record type to be used for the query.
-     * @param queryServer Address of the server to be used for the query.
-     * @return dnsResponseParser The DNSResponseParser initialized properly. It should be parsed
+     * Queries are identified by their node and the first server they are sent to.
+     *
+     * @param node         Host name and record type to be used for the query.
+     * @param queryServers Addresses of the servers that may answer the query, best first.
+     * @return dnsResponseParser The parsed response, or null if the query timed out.
      */
-    private static DNSResponseParser sendAndReceiveQuery(DNSNode node, InetAddress queryServer) throws Exception {
-        int transactionID = abs(random.nextInt()) % 65535; // We want this to be the same if query is resent
-        DNSResponseParser dnsResponseParser;
-        int timesSocketTimedOut = 0;
-        outerloop:
-        while (true) { // If socket times out, try again, if it happens again, fail
+    private static DNSResponseParser sendAndReceiveQuery(DNSNode node, List<InetAddress> queryServers) throws Exception {
+        InFlightKey key = new InFlightKey(node, queryServers.get(0));
+        CompletableFuture<DNSResponseParser> flight = new CompletableFuture<>();
+        CompletableFuture<DNSResponseParser> existingFlight = inFlightQueries.putIfAbsent(key, flight);
+        if (existingFlight != null) {
             try {
-                dnsResponseParser = null;
-                if (timesSocketTimedOut > 1) {
-                    break outerloop; // DNSResponse parser will be null
-                }
-                //generate the packet and send
-                DNSQueryGenerator queryGenerator = new DNSQueryGenerator(node, verboseTracing);
-                DatagramPacket query = queryGenerator.createPacket(queryServer, DEFAULT_DNS_PORT, transactionID);
-                socket.send(query);
-
-                //Wait for response
-                DatagramPacket response;
-
-                while (true) { // Keep receiving response until correct packet is received
-                    response = new DatagramPacket(new byte[1024], 1024);
-
-                    socket.receive(response);
-                    dnsResponseParser = new DNSResponseParser(response, node, verboseTracing);
-                    if (dnsResponseParser.checkValidTransactionID(queryGenerator.getGeneratedId())) {
-                        dnsResponseParser.parse(); // Parse the response to update cache
-                        break outerloop; // its a valid response so we know we got the right packet and DNSResponseParser is initialized properly
-                    }
-                }
-            } catch (SocketTimeoutException e) {
-                // Repeat call
-                timesSocketTimedOut++;
+                return existingFlight.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
             }
         }
 
-        return dnsResponseParser;
+        try {
+            DNSResponseParser dnsResponseParser = exchangeQuery(node, queryServers);
+            flight.complete(dnsResponseParser);
+            return dnsResponseParser;
+        } catch (Exception e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightQueries.remove(key, flight);
+        }
     }
 
     /**
-     * Checks cache to see if a cNameNode can be found with type of node
-     * If found, returns the last CNameNode that can be found by following pointers of original Node
-     * Also updates the type to be of the original queried node.
-     * if no CName node found, returns null
+     * Query is sent in iterative mode, and packet is received.
+     * Each attempt waits for the retransmission timeout of its server, which is derived from the
+     * RTT measured for that server and doubles (with some jitter) every time the server is tried
+     * again. Attempts go to each candidate server in turn, so a dead or slow server is skipped
+     * rather than retried, and a server reporting a failure is replaced by the next one, if any.
+     * Responses are matched to the query by the transport, so other queries may be outstanding at the same time.
      *
-     * @param node Host name and record type to be used for the original query that is trying to resolve CNames.
-     * @return DNSNode Last CNAME node such that a node with it's Address and Node's type does not exist in cache | null
+     * @param node         Host name and record type to be used for the query.
+     * @param queryServers Addresses of the servers that may answer the query, best first.
+     * @return dnsResponseParser The DNSResponseParser initialized properly, or null if every attempt timed out
      */
-    private static DNSNode findLastCNameInChainFromCache(DNSNode node) throws Exception{
-        //TODO needs to iterate over all cnames in cache if they exist, not first first one
-        DNSNode cNameNode = null;
-        DNSNode currentNode = node;
-        int indirectionLevel = 1;
-        while (true) {
-            if(indirectionLevel > 10) throw new Exception("Max Indirection Level Reached");
-            Set<ResourceRecord> cachedCname = cache.getCachedResults(new DNSNode(currentNode.getHostName(), RecordType.CNAME));
-            ArrayList<ResourceRecord> cachedCnames = new ArrayList<>(cachedCname);
-            if (!(cachedCnames.size() > 0)) { // No CName Records found for currentNode hence last node in CNAME chain
-                break;
+    private static DNSResponseParser exchangeQuery(DNSNode node, List<InetAddress> queryServers) throws Exception {
+        boolean verboseTracing = tracer.isEnabled();
+        DNSQueryGenerator queryGenerator = new DNSQueryGenerator(node, verboseTracing);
+        int attempts = Math.max(MAX_QUERY_ATTEMPTS, queryServers.size());
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            InetAddress queryServer = queryServers.get(attempt % queryServers.size());
+
+            //generate the packet and send, with another transaction ID if this one is already in use
+            boolean useEdns = nameServers.supportsEdns(queryServer);
+            long timeout = nameServers.getRetransmissionTimeout(queryServer, attempt / queryServers.size());
+            DatagramPacket query;
+            CompletableFuture<DatagramPacket> pendingResponse;
+            long sendTime;
+            do {
+                int transactionID = abs(random.nextInt()) % 65535;
+                query = queryGenerator.createPacket(queryServer, dnsPort, transactionID, useEdns);
+                sendTime = System.nanoTime();
+                pendingResponse = transport.query(query, timeout);
+            } while (pendingResponse == null);
+            DatagramPacket response;
+            try {
+                response = pendingResponse.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SocketTimeoutException) {
+                    nameServers.recordTimeout(queryServer);
+                    stats.recordTimeout();
+                    continue; // Retransmit, to the next server if there is one
+                }
+                if (e.getCause() instanceof IOException)
+                    continue; // The query could not be sent, try again
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
             }
-            String cName = cachedCnames.get(0).getTextResult(); // currentNode was a CNameNode that pointed to cName
-            cNameNode = new DNSNode(cName, node.getType()); // Update return value to have cName and type of parameter node
+            nameServers.recordResponse(queryServer, (System.nanoTime() - sendTime) / 1e6);
 
-            updateHashMap(currentNode.getHostName(), cNameNode.getHostName()); // Let HostNameToCNameMap know that this hostName has this CName
-            currentNode = new DNSNode(cNameNode.getHostName(), RecordType.CNAME); // Update to continute iterating
-            indirectionLevel++;
+            DNSResponseParser dnsResponseParser = new DNSResponseParser(response, node, verboseTracing);
+            try {
+                dnsResponseParser.parse(); // Parse the response to update cache
+                if (dnsResponseParser.isTruncated()) {
+                    // The response did not fit in a datagram, ask the same server again over TCP
+                    if (verboseTracing)
+                        tracer.traceTruncated();
+                    DatagramPacket tcpResponse;
+                    try {
+                        tcpResponse = queryOverTCP(query, queryServer);
+                    } catch (IOException e) {
+                        // A TCP timeout or connection failure is handled like a UDP timeout
+                        if (e instanceof SocketTimeoutException) {
+                            nameServers.recordTimeout(queryServer);
+                            stats.recordTimeout();
+                        } else
+                            nameServers.recordFailure(queryServer);
+                        continue; // Ask the next server instead
+                    }
+                    dnsResponseParser = new DNSResponseParser(tcpResponse, node, verboseTracing);
+                    dnsResponseParser.parse();
+                }
+            } catch (Exception e) {
+                if (!dnsResponseParser.isServerFailure())
+                    throw e;
+                if (useEdns && DNSQueryGenerator.isEdnsEnabled() && dnsResponseParser.getRcode() == RCODE_FORMAT_ERROR) {
+                    // Servers that do not implement EDNS may reject the OPT record, ask again without it
+                    nameServers.recordEdnsUnsupported(queryServer);
+                    attempt--;
+                    continue;
+                }
+                nameServers.recordFailure(queryServer);
+                if (queryServers.size() == 1 || attempt == attempts - 1)
+                    throw e;
+                continue; // Ask the next server instead
+            }
+            return dnsResponseParser;
         }
 
-        return cNameNode;
+        return null;
     }
 
-    private static void updateHashMap(String hostName, String cNameToInsert) {
-        if (!HostNameToCNameMap.containsKey(hostName)) {
-            // initialize list for hostName
-            HostNameToCNameMap.put(hostName, new ArrayList<String>());
-        }
-        if (!cNameToInsert.equals(null) && cNameToInsert.length() > 0) {
-            HostNameToCNameMap.get(hostName).add(cNameToInsert);
+    /**
+     * Sends a query over TCP, on the pooled connection to its server, and waits for the response.
+     * The timeout allows for the connection handshake on top of the query itself.
+     *
+     * @param query       Query packet, including the destination address and port.
+     * @param queryServer Address of the server the query is sent to.
+     * @return The response packet.
+     */
+    private static DatagramPacket queryOverTCP(DatagramPacket query, InetAddress queryServer) throws Exception {
+        try {
+            return tcpTransport.query(query, nameServers.getRetransmissionTimeout(queryServer, 2)).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
         }
     }
 
@@ -417,27 +891,38 @@ public class DNSLookupService {
      * @param server Address of the server to be used for the query.
      */
     private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        InetAddress temp = rootServer;
-        rootServer = server;
-        getResults(node, 0);
-        rootServer = temp;
+        getResults(node, 0, server);
+    }
+
+    /**
+     * Prints the latency histograms (in milliseconds) and counters of the resolver, of the cache
+     * and of each name server queried.
+     */
+    private static synchronized void printStats() {
+        System.out.println("Lookups:     " + stats.getLookupLatency().summary());
+        System.out.println("Parsing:     " + stats.getParseLatency().summary());
+        System.out.printf("Cache:       size %d  hits %d  misses %d  insertions %d  expirations %d  evictions %d\n",
+                cache.size(), cache.getHitCount(), cache.getMissCount(), cache.getInsertionCount(),
+                cache.getExpirationCount(), cache.getEvictionCount());
+        System.out.printf("Resolution:  referrals %d  CNAME indirections %d  timeouts %d\n",
+                stats.getReferrals(), stats.getCNameIndirections(), stats.getTimeouts());
+        nameServers.forEach((server, serverStats) -> System.out.printf("Server %-15s %s  timeouts %d  failures %d\n",
+                server.getHostAddress(), serverStats.getQueryLatency().summary(),
+                serverStats.getTimeouts(), serverStats.getFailures()));
     }
 
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+        if (tracer.isEnabled())
+            tracer.traceRecord(record, rtype);
     }
 
     /**
-     * Prints the result of a DNS query.
+     * Prints the result of a DNS query. Results of concurrent lookups are not interleaved.
      *
      * @param node    Host name and record type used for the query.
      * @param results Set of results to be printed for the node.
      */
-    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+    private static synchronized void printResults(DNSNode node, Set<ResourceRecord> results) {
         if (results.isEmpty())
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
@@ -446,4 +931,33 @@ public class DNSLookupService {
                     node.getType(), record.getTTL(), record.getTextResult());
         }
     }
+
+    /**
+     * Key of the in-flight query table: a node and the server it is being queried from.
+     */
+    private static class InFlightKey {
+        private final DNSNode node;
+        private final InetAddress server;
+
+        private InFlightKey(DNSNode node, InetAddress server) {
+            this.node = node;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            InFlightKey that = (InFlightKey) o;
+
+            if (!node.equals(that.node)) return false;
+            return server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * node.hashCode() + server.hashCode();
+        }
+    }
 }
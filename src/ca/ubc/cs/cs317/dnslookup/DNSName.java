@@ -0,0 +1,80 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+
+/** Canonical representation of a domain name, as handed out by the {@link DNSNameTable}. The
+ * name is case-folded, and its hash and wire format encoding (sequence of length-prefixed
+ * labels ending with the root label) are computed only once. Each canonical name also shares a
+ * single DNSNode per record type.
+ */
+final class DNSName {
+
+    private final String name;
+    private final int hash;
+    private final byte[] wireEncoding;
+    private final DNSNode[] nodes = new DNSNode[RecordType.values().length];
+
+    DNSName(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+        this.wireEncoding = encode(name);
+    }
+
+    /** Returns the case-folded name, with labels separated by dots and without a trailing dot.
+     */
+    String getName() {
+        return name;
+    }
+
+    int getHash() {
+        return hash;
+    }
+
+    /** Returns the wire format encoding of this name. The returned array must not be modified.
+     */
+    byte[] getWireEncoding() {
+        return wireEncoding;
+    }
+
+    /** Returns the shared node for this name and a record type. Two threads asking for the same
+     * node at the same time may each create one, but the nodes are equal, and only one of them
+     * is kept.
+     *
+     * @param type Record type of the node.
+     * @return A node with this name and the specified type.
+     */
+    DNSNode getNode(RecordType type) {
+        DNSNode node = nodes[type.ordinal()];
+        if (node == null) {
+            node = new DNSNode(name, type);
+            nodes[type.ordinal()] = node;
+        }
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static byte[] encode(String name) {
+        byte[] encoding = new byte[name.isEmpty() ? 1 : name.length() + 2];
+        int offset = 0;
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0)
+                labelEnd = name.length();
+            if (labelEnd == labelStart) {       // skip empty labels, e.g., in "host..com"
+                labelStart++;
+                continue;
+            }
+            encoding[offset++] = (byte) (labelEnd - labelStart);
+            for (int i = labelStart; i < labelEnd; i++)
+                encoding[offset++] = (byte) name.charAt(i);
+            labelStart = labelEnd + 1;
+        }
+        encoding[offset] = 0;
+        return offset + 1 == encoding.length ? encoding : Arrays.copyOf(encoding, offset + 1);
+    }
+}
@@ -0,0 +1,158 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Table of canonical domain names, shared by the response parser, the query generator and the
+ * cache. Names are case-folded (for ASCII letters only, as DNS does) before being interned, so
+ * all spellings of a name map to the same {@link DNSName}, and to the same DNSNode for each
+ * record type. Names can be looked up either in dotted form or directly in a DNS message in wire
+ * format; in both cases, a name that is already in the table is found without allocating any
+ * object.
+ *
+ * The table is a fixed-size open addressing hash table that is updated without locks. Once it
+ * is three quarters full, or if a name cannot be placed within a few probes, new names are
+ * returned without being interned, so the memory used by the table is bounded. Names are never
+ * removed from the table, even after their records have left the cache: a long-running server
+ * eventually fills the table with the names it saw first, and from then on allocates a new
+ * DNSName and DNSNode for every other name it handles. Results are still correct, only slower,
+ * so the number of slots should be sized for the expected working set with the
+ * dnslookup.names.tableSize system property.
+ */
+class DNSNameTable {
+
+    private static final int DEFAULT_TABLE_SIZE = 1 << 16;
+    private static final int MAX_PROBES = 16;
+    private static final int MAX_POINTER_JUMPS = 64;
+
+    private static DNSNameTable instance =
+            new DNSNameTable(Integer.getInteger("dnslookup.names.tableSize", DEFAULT_TABLE_SIZE));
+
+    private final AtomicReferenceArray<DNSName> slots;
+    private final int mask;
+    private final int maximumSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    DNSNameTable(int tableSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, tableSize - 1) << 1);
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maximumSize = capacity / 4 * 3;
+    }
+
+    static DNSNameTable getInstance() {
+        return instance;
+    }
+
+    /** Returns the shared node for a host name and record type.
+     *
+     * @param hostName Domain name in dotted form, in any case, with or without a trailing dot.
+     * @param type     Record type of the node.
+     */
+    DNSNode node(String hostName, RecordType type) {
+        return intern(hostName).getNode(type);
+    }
+
+    /** Returns the canonical name for a domain name in dotted form.
+     *
+     * @param hostName Domain name in dotted form, in any case, with or without a trailing dot.
+     */
+    DNSName intern(String hostName) {
+        int length = hostName.endsWith(".") ? hostName.length() - 1 : hostName.length();
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + DNSWireFormat.toLowerCase(hostName.charAt(i));
+
+        for (int probe = 0, index = spread(hash); probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+            DNSName name = slots.get(index);
+            if (name == null)
+                return insert(index, hash, DNSWireFormat.toLowerCase(hostName, length));
+            if (name.getHash() == hash && equalsIgnoreCase(name.getName(), hostName, length))
+                return name;
+        }
+        return new DNSName(DNSWireFormat.toLowerCase(hostName, length), hash);
+    }
+
+    /** Returns the canonical name for a (possibly compressed) domain name in a DNS message.
+     *
+     * @param data   Buffer containing the DNS message.
+     * @param offset Offset of the first label of the name.
+     */
+    DNSName intern(ByteBuffer data, int offset) {
+        int hash = wireHash(data, offset);
+        for (int probe = 0, index = spread(hash); probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+            DNSName name = slots.get(index);
+            if (name == null)
+                return insert(index, hash, DNSWireFormat.decodeName(data, offset, true));
+            if (name.getHash() == hash && DNSWireFormat.nameEqualsIgnoreCase(data, offset, name.getName()))
+                return name;
+        }
+        return new DNSName(DNSWireFormat.decodeName(data, offset, true), hash);
+    }
+
+    /** Number of names currently interned.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /** Adds a name to an empty slot. If another thread filled the slot in the meantime, the
+     * table is searched again from that slot, since the other thread may have added the same
+     * name.
+     */
+    private DNSName insert(int index, int hash, String canonicalName) {
+        DNSName name = new DNSName(canonicalName, hash);
+        if (size.get() >= maximumSize)
+            return name;
+        for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+            if (slots.compareAndSet(index, null, name)) {
+                size.incrementAndGet();
+                return name;
+            }
+            DNSName existing = slots.get(index);
+            if (existing.getHash() == hash && existing.getName().equals(canonicalName))
+                return existing;
+        }
+        return name;
+    }
+
+    /** Computes the same hash as intern(String) would for the dotted form of a name in wire
+     * format, without decoding it.
+     */
+    private static int wireHash(ByteBuffer data, int offset) {
+        int hash = 0;
+        boolean first = true;
+        int jumps = 0;
+        while (true) {
+            int length = data.get(offset) & 0xFF;
+            if (length == 0)
+                return hash;
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > MAX_POINTER_JUMPS)
+                    throw new IllegalArgumentException("Compression loop in domain name");
+                offset = DNSWireFormat.readUnsignedShort(data, offset) & 0x3FFF;
+                continue;
+            }
+            if (!first)
+                hash = 31 * hash + '.';
+            first = false;
+            for (int i = 1; i <= length; i++)
+                hash = 31 * hash + DNSWireFormat.toLowerCase((char) (data.get(offset + i) & 0xFF));
+            offset += length + 1;
+        }
+    }
+
+    private static boolean equalsIgnoreCase(String canonicalName, String hostName, int length) {
+        if (canonicalName.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (canonicalName.charAt(i) != DNSWireFormat.toLowerCase(hostName.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private int spread(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
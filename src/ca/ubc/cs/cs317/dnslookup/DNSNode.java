@@ -4,16 +4,38 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal, ignoring the case of
+ * ASCII letters (as DNS does, RFC 4343) and a trailing dot, the same way the {@link DNSNameTable}
+ * normalizes names.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
-    private RecordType type;
+    private final String hostName;
+    private final String caseFoldedHostName;
+    private final RecordType type;
+    private final int hash;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
+        this.caseFoldedHostName = DNSWireFormat.toLowerCase(hostName,
+                hostName.endsWith(".") ? hostName.length() - 1 : hostName.length());
         this.type = type;
+        // Hashed on the type code rather than the enum's identity hash, which differs between
+        // JVMs, so that the hash stored in a serialized node remains valid when it is read back
+        this.hash = 31 * caseFoldedHostName.hashCode() + type.getCode();
+    }
+
+    /** Returns the node for a host name and type shared through the {@link DNSNameTable}.
+     * Shared nodes are compared by identity in the cache, and do not need to be allocated again
+     * when the same name is seen again. The host name of the returned node is case-folded, and
+     * has no trailing dot.
+     *
+     * @param hostName Fully-qualified domain name.
+     * @param type     Record type.
+     * @return A node equal to new DNSNode(hostName, type).
+     */
+    public static DNSNode of(String hostName, RecordType type) {
+        return DNSNameTable.getInstance().node(hostName, type);
     }
 
     public String getHostName() {
@@ -31,15 +53,13 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        if (!caseFoldedHostName.equals(dnsNode.caseFoldedHostName)) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return hash;
     }
 
     @Override
@@ -49,8 +69,8 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        if (!caseFoldedHostName.equals(o.caseFoldedHostName))
+            return caseFoldedHostName.compareTo(o.caseFoldedHostName);
         else
             return type.compareTo(o.type);
     }
@@ -2,43 +2,131 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.util.Arrays;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
+/** Generates query packets. The header and question section of a query only depend on the
+ * queried node, so they are encoded once per node into a template that is cached. Creating a
+ * packet then only requires copying the template into a per-thread buffer and patching the
+ * transaction ID.
+ *
+ * Queries advertise EDNS(0) support (RFC 6891) with an OPT pseudo-record in the additional
+ * section, so that servers may send responses larger than 512 bytes over UDP. The advertised
+ * UDP payload size is DEFAULT_EDNS_BUFFER_SIZE, which avoids IP fragmentation on most paths, and
+ * may be changed with the dnslookup.edns.bufferSize system property; a size of 0 disables EDNS.
+ * Queries to servers that do not support EDNS are sent without the OPT record.
+ *
+ * In verbose mode, every packet created is traced with the {@link DNSTracer}.
+ */
 public class DNSQueryGenerator {
+    private static final int MAX_QUERY_LENGTH = 512;
+    private static final int MAX_NAME_LENGTH = 255;                             //in wire format (RFC 1035, section 2.3.4)
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int DEFAULT_EDNS_BUFFER_SIZE = 1232;
+    private static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    private static final int OPT_RECORD_LENGTH = 11;
+    private static final int EDNS_BUFFER_SIZE = advertisedBufferSize(
+            Integer.getInteger("dnslookup.edns.bufferSize", DEFAULT_EDNS_BUFFER_SIZE));
+    private static final int MAX_CACHED_TEMPLATES = 65536;
+    private static Map<DNSNode, byte[]> queryTemplates = new ConcurrentHashMap<>();
+    private static ThreadLocal<byte[]> packetBuffers = ThreadLocal.withInitial(() -> new byte[MAX_QUERY_LENGTH]);
     private static Random random = new Random();
-    private int bufferLength;
-    private byte[] buffer;
     private DNSNode node;
     private int generatedId;
     private boolean isVerbose;
 
 
     public DNSQueryGenerator(DNSNode node, boolean isVerbose) {
-        this.buffer = new byte[256];
         this.node = node;
         this.isVerbose = isVerbose;
     }
 
+    /** Creates the query packet for this generator's node. The packet data is a buffer owned by
+     * the calling thread, which is reused by the next packet created on the same thread, so the
+     * packet must be sent before another packet is created.
+     */
     public DatagramPacket createPacket(InetAddress rootServer, int port, int generatedId) {
+        return createPacket(rootServer, port, generatedId, true);
+    }
+
+    /** Creates the query packet for this generator's node, with or without the OPT record.
+     *
+     * @param useEdns Whether the query advertises EDNS support, if EDNS is enabled at all.
+     */
+    public DatagramPacket createPacket(InetAddress rootServer, int port, int generatedId, boolean useEdns) {
         this.generatedId = generatedId;
-        generateHeaderSection(this.buffer);
-        generateQuestionSection(this.buffer, this.node);
-        if(this.isVerbose){
-            System.out.print("\n\n"); // for each query that is sent, print 2 blank lines
-            System.out.println("Query ID     " + this.generatedId
-            +  " " + this.node.getHostName()
-            +  "  " + this.node.getType()
-            + " --> " + rootServer.getHostAddress());
+        byte[] template = getQueryTemplate(this.node);
+        byte[] buffer = packetBuffers.get();
+        int length = template.length;
+        System.arraycopy(template, 0, buffer, 0, length);
+        if (!useEdns && isEdnsEnabled()) {
+            length -= OPT_RECORD_LENGTH;                                         //drop the OPT record
+            buffer[11] = (byte) 0;                                               //and set ARCount back to 0
         }
-        byte[] bufferExactSize = Arrays.copyOfRange(this.buffer,0, this.bufferLength);
-        return new DatagramPacket(bufferExactSize, this.bufferLength, rootServer, port);
+        buffer[0] = (byte) (this.generatedId >>> 8);                             //patch ID into first two bytes
+        buffer[1] = (byte) (this.generatedId & (0xFF));
+        if(this.isVerbose)
+            DNSTracer.getInstance().traceQuery(this.generatedId, this.node, rootServer);
+        return new DatagramPacket(buffer, length, rootServer, port);
+    }
+
+    /** Returns the encoded header and question section for a node, with a zero transaction ID.
+     * Templates are cached until MAX_CACHED_TEMPLATES nodes have one; queries for other nodes
+     * are then encoded every time. Since names are at most MAX_NAME_LENGTH bytes long, a template
+     * always fits in the MAX_QUERY_LENGTH bytes of the packet buffers.
+     *
+     * @throws IllegalArgumentException If the host name is longer than MAX_NAME_LENGTH bytes, or
+     *                                  has a label longer than MAX_LABEL_LENGTH bytes, once encoded.
+     */
+    private static byte[] getQueryTemplate(DNSNode node) {
+        byte[] template = queryTemplates.get(node);
+        if (template == null) {
+            byte[] encodedName = DNSNameTable.getInstance().intern(node.getHostName()).getWireEncoding();
+            checkEncodedName(encodedName, node.getHostName());
+            int questionLength = 12 + encodedName.length + 4;                   //header, name, qtype and qclass
+            template = new byte[questionLength + (isEdnsEnabled() ? OPT_RECORD_LENGTH : 0)];
+            generateHeaderSection(template, isEdnsEnabled() ? 1 : 0);
+            generateQuestionSection(template, node, encodedName);
+            if (isEdnsEnabled())
+                generateOptRecord(template, questionLength);
+            if (queryTemplates.size() < MAX_CACHED_TEMPLATES)
+                queryTemplates.putIfAbsent(node, template);
+        }
+        return template;
+    }
+
+    private static void checkEncodedName(byte[] encodedName, String hostName) {
+        if (encodedName.length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Domain name is longer than " + MAX_NAME_LENGTH + " bytes: " + hostName);
+        for (int offset = 0; encodedName[offset] != 0; offset += 1 + (encodedName[offset] & 0xFF))
+            if ((encodedName[offset] & 0xFF) > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Domain name has a label longer than " + MAX_LABEL_LENGTH
+                        + " bytes: " + hostName);
     }
 
+    /** Payload sizes below 512 bytes are treated as 512 (RFC 6891, section 6.2.5).
+     */
+    private static int advertisedBufferSize(int configuredSize) {
+        return configuredSize <= 0 ? 0 : Math.max(MIN_UDP_PAYLOAD_SIZE, Math.min(65535, configuredSize));
+    }
+
+    /** Returns true if queries advertise EDNS support.
+     */
+    public static boolean isEdnsEnabled() {
+        return EDNS_BUFFER_SIZE > 0;
+    }
 
-    private void generateHeaderSection(byte[] buf){
-        buf[0] = (byte) (this.generatedId >>> 8);                                 //assign ID to first two bytes
-        buf[1] = (byte) (this.generatedId & (0xFF));
+    /** Returns the largest UDP response expected, i.e., the advertised EDNS payload size, or the
+     * 512 bytes allowed without EDNS.
+     */
+    public static int getUdpPayloadSize() {
+        return Math.max(MIN_UDP_PAYLOAD_SIZE, EDNS_BUFFER_SIZE);
+    }
+
+    private static void generateHeaderSection(byte[] buf, int additionalCount){
+        buf[0] = (byte) 0;                                          //ID is patched in when a packet is created
+        buf[1] = (byte) 0;
         buf[2] = (byte) 0;                                          //sets QR to 0 cause query, OpCode 0 for standard query, AA, RD and TC to 0
         buf[3] = (byte) 0;                                          //sets RA, Z, Rcode to 0
         buf[4] = (byte) 0;                                          //sets QDcount to 1 (we ask 1 question)
@@ -47,67 +135,31 @@ public class DNSQueryGenerator {
         buf[7] = (byte) 0;
         buf[8] = (byte) 0;                                          //sets NSCount to 0 (no name server RR's)
         buf[9] = (byte) 0;
-        buf[10] = (byte) 0;                                         //sets ARCount to 0 no RR's in additional section
-        buf[11] = (byte) 0;
+        buf[10] = (byte) 0;                                         //sets ARCount to 1 if the OPT record is added, 0 otherwise
+        buf[11] = (byte) additionalCount;
     }
 
-    private void generateQuestionSection(byte[] buf, DNSNode node) {
+    private static void generateQuestionSection(byte[] buf, DNSNode node, byte[] encodedName) {
         int currentOffset = 12;                                                  //Header section takes up 12 bytes
-        String address = node.getHostName();
-        String[] splitAddress = address.split("\\.");                       //seperates address into subdomains ex: ["www","google","com"]
-        for(String addressPart : splitAddress){
-            int addresPartLength = addressPart.length();
-            buf[currentOffset] = (byte) (addresPartLength & (0xFF));             //inserts length of subdomain into buffer
-            currentOffset++;
-            for(int i = 0; i < addresPartLength; i++) {                          //this loop inserts individual character ASCII codes into buffer
-                char c = addressPart.charAt(i);
-                buf[currentOffset] = (byte) ((int) c & (0xFF));
-                currentOffset++;
-            }
-        }
-        buf[currentOffset] = (byte) 0;                                          //inserts 00 terminating code
-        currentOffset ++;
-        currentOffset = insertQType(buf, currentOffset);
-        currentOffset ++;
-        buf[currentOffset] = (byte) 1;                                          //inserts 1 as Qclass for IN
-        this.bufferLength = currentOffset + 1;                                  //add 1 for 0 based index
+        System.arraycopy(encodedName, 0, buf, currentOffset, encodedName.length); //length-prefixed labels ex: 3www6google3com0
+        currentOffset += encodedName.length;
+        int code = node.getType().getCode();
+        buf[currentOffset] = (byte) (code >>> 8);                               //inserts Qtype
+        currentOffset++;
+        buf[currentOffset] = (byte) (code & 0xFF);
+        currentOffset++;
+        buf[currentOffset] = (byte) 0;                                          //inserts 1 as Qclass for IN
+        currentOffset++;
+        buf[currentOffset] = (byte) 1;
     }
 
-    private int insertQType(byte[] buf, int currentOffset) {
-        int code = this.node.getType().getCode();
-        switch (this.node.getType()){
-            case A:
-                buf[currentOffset] = 0;
-                currentOffset++;
-                buf[currentOffset] = 0x01;
-                currentOffset++;
-                break;
-            case AAAA:              //code = 28
-                buf[currentOffset] = 0;
-                currentOffset++;
-                buf[currentOffset] = 0x1C;
-                currentOffset++;
-                break;
-            case NS:
-                buf[currentOffset] = 0;
-                currentOffset++;
-                buf[currentOffset] = 0x02;
-                currentOffset++;
-                break;
-            case MX:                //code = 15
-                buf[currentOffset] = 0;
-                currentOffset++;
-                buf[currentOffset] = 0x0F;
-                currentOffset++;
-                break;
-            case CNAME:
-                buf[currentOffset] = 0;
-                currentOffset++;
-                buf[currentOffset] = 0x05;
-                currentOffset++;
-                break;
-        }
-        return currentOffset;
+    private static void generateOptRecord(byte[] buf, int offset) {
+        buf[offset] = (byte) 0;                                                 //root domain name
+        buf[offset + 1] = (byte) 0;                                             //type 41 (OPT)
+        buf[offset + 2] = (byte) RecordType.OPT.getCode();
+        buf[offset + 3] = (byte) (EDNS_BUFFER_SIZE >>> 8);                      //class holds the UDP payload size
+        buf[offset + 4] = (byte) (EDNS_BUFFER_SIZE & 0xFF);
+        //TTL holds extended RCODE, version 0 and flags, RDLENGTH is 0 (no options): all left as 0
     }
 
     public int getGeneratedId() {
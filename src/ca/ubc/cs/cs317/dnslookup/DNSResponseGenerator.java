@@ -0,0 +1,196 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/** Generates response packets, as the counterpart of {@link DNSQueryGenerator} for the resolver
+ * daemon. A response repeats the question of the query it answers, byte for byte, followed by
+ * the answer records and authority records, e.g., the SOA record of the zone for negative
+ * responses (RFC 2308). The owner name of records for the queried name is compressed into a
+ * pointer to the question; other names are written in full.
+ *
+ * A response that does not fit in the maximum length allowed by the client (512 bytes, or the
+ * payload size of the client's OPT record, over UDP) is sent without records and with the TC bit
+ * set, so that the client retries over TCP, where responses may be up to 65535 bytes long.
+ */
+public class DNSResponseGenerator {
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+
+    private static final int QUESTION_POINTER = 0xC000 | 12;        //the question name follows the header
+
+    private final byte[] question;
+    private final String caseFoldedQuestionName;
+    private final int id;
+    private final boolean recursionDesired;
+    private final int maxLength;
+    private final int ednsPayloadSize;
+
+    /**
+     * @param question         Question section of the query, in wire format (name, type and class).
+     * @param questionName     Queried name, in dotted form.
+     * @param id               Transaction ID of the query.
+     * @param recursionDesired Value of the RD bit of the query, which is copied to the response.
+     * @param maxLength        Maximum length of the response.
+     * @param ednsPayloadSize  Payload size advertised in an OPT record added to the response, or 0
+     *                         if the query had no OPT record.
+     */
+    public DNSResponseGenerator(byte[] question, String questionName, int id, boolean recursionDesired,
+                                int maxLength, int ednsPayloadSize) {
+        this.question = question;
+        this.caseFoldedQuestionName = DNSNameTable.getInstance().intern(questionName).getName();
+        this.id = id;
+        this.recursionDesired = recursionDesired;
+        this.maxLength = maxLength;
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /** Creates a response with a specific RCODE and answer records. Records with a type whose
+     * data cannot be encoded (i.e., other than A, AAAA, NS, CNAME and SOA) are left out.
+     *
+     * @param rcode   Response code.
+     * @param answers Records of the answer section, in order.
+     * @return The encoded response.
+     */
+    public byte[] createResponse(int rcode, List<ResourceRecord> answers) {
+        return createResponse(rcode, answers, Collections.emptyList());
+    }
+
+    /** Creates a response with a specific RCODE, answer records and authority records.
+     *
+     * @param rcode     Response code.
+     * @param answers   Records of the answer section, in order.
+     * @param authority Records of the authority section, in order.
+     * @return The encoded response.
+     */
+    public byte[] createResponse(int rcode, List<ResourceRecord> answers, List<ResourceRecord> authority) {
+        byte[] response = encode(rcode, answers, authority, false);
+        if (response.length > maxLength)
+            response = encode(rcode, Collections.emptyList(), Collections.emptyList(), true);
+        return response;
+    }
+
+    /** Creates a response without any record, e.g., to report an error.
+     */
+    public byte[] createResponse(int rcode) {
+        return encode(rcode, Collections.emptyList(), Collections.emptyList(), false);
+    }
+
+    private byte[] encode(int rcode, List<ResourceRecord> answers, List<ResourceRecord> authority,
+                          boolean truncated) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        ByteArrayOutputStream records = new ByteArrayOutputStream(256);
+        int answerCount = 0;
+        for (ResourceRecord answer : answers)
+            if (generateResourceRecord(records, answer))
+                answerCount++;
+        int authorityCount = 0;
+        for (ResourceRecord record : authority)
+            if (generateResourceRecord(records, record))
+                authorityCount++;
+
+        generateHeaderSection(out, rcode, truncated, question == null ? 0 : 1, answerCount, authorityCount);
+        if (question != null)
+            out.write(question, 0, question.length);
+        byte[] encodedRecords = records.toByteArray();
+        out.write(encodedRecords, 0, encodedRecords.length);
+        if (ednsPayloadSize > 0)
+            generateOptRecord(out);
+        return out.toByteArray();
+    }
+
+    private void generateHeaderSection(ByteArrayOutputStream out, int rcode, boolean truncated,
+                                       int questionCount, int answerCount, int authorityCount) {
+        writeShort(out, id);
+        out.write(0x80                                              //QR 1 for response, OpCode 0, AA 0
+                | (truncated ? 0x02 : 0)                            //TC if the records do not fit
+                | (recursionDesired ? 0x01 : 0));                   //RD copied from the query
+        out.write(0x80 | (rcode & 0x0F));                           //RA 1, Z 0, RCODE
+        writeShort(out, questionCount);                             //QDCount
+        writeShort(out, answerCount);                               //ANCount
+        writeShort(out, authorityCount);                            //NSCount
+        writeShort(out, ednsPayloadSize > 0 ? 1 : 0);               //ARCount, only the OPT record if any
+    }
+
+    /** Writes a single record, returning false (and writing nothing) if its data cannot be
+     * encoded.
+     */
+    private boolean generateResourceRecord(ByteArrayOutputStream out, ResourceRecord record) {
+        byte[] data;
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                if (record.getInetResult() == null)
+                    return false;
+                data = record.getInetResult().getAddress();
+                break;
+            case NS:
+            case CNAME:
+                data = DNSNameTable.getInstance().intern(record.getTextResult()).getWireEncoding();
+                break;
+            case SOA:
+                data = encodeSOAData(record.getTextResult());
+                if (data == null)
+                    return false;
+                break;
+            default:
+                return false;
+        }
+
+        DNSName owner = DNSNameTable.getInstance().intern(record.getHostName());
+        if (owner.getName().equals(caseFoldedQuestionName))
+            writeShort(out, QUESTION_POINTER);
+        else
+            out.write(owner.getWireEncoding(), 0, owner.getWireEncoding().length);
+        writeShort(out, record.getType().getCode());
+        writeShort(out, 1);                                         //class IN
+        long ttl = Math.max(0, Math.min(0x7FFFFFFFL, record.getTTL()));
+        writeShort(out, (int) (ttl >>> 16));
+        writeShort(out, (int) ttl);
+        writeShort(out, data.length);
+        out.write(data, 0, data.length);
+        return true;
+    }
+
+    /** Encodes the data of an SOA record from master file format, as cached by the response
+     * parser. Returns null if the text is not a valid SOA record.
+     */
+    private static byte[] encodeSOAData(String text) {
+        String[] fields = text.split(" ");
+        if (fields.length != 7)
+            return null;
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+        for (int i = 0; i < 2; i++) {
+            byte[] name = DNSNameTable.getInstance().intern(fields[i]).getWireEncoding();
+            data.write(name, 0, name.length);
+        }
+        try {
+            for (int i = 2; i < 7; i++) {
+                long value = Long.parseLong(fields[i]);
+                writeShort(data, (int) (value >>> 16));
+                writeShort(data, (int) value);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return data.toByteArray();
+    }
+
+    private void generateOptRecord(ByteArrayOutputStream out) {
+        out.write(0);                                               //root domain name
+        writeShort(out, RecordType.OPT.getCode());
+        writeShort(out, ednsPayloadSize);                           //class holds the UDP payload size
+        writeShort(out, 0);                                         //extended RCODE, version 0, no flags
+        writeShort(out, 0);
+        writeShort(out, 0);                                         //no options
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >>> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+}
@@ -1,15 +1,26 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.net.DatagramPacket;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.List;
 
+/** Parser for DNS responses. The response is read in place from a byte buffer: records are
+ * first indexed by offset, and each record is only decoded when it is actually used. Records
+ * in the answer and authority sections are added to the cache, while records in the additional
+ * section are only decoded if they hold the address of a name server listed in the response.
+ * Name errors (NXDOMAIN) and authoritative answers without any record (NODATA) are added to the
+ * cache as negative results, if the authority section has the SOA record of the zone.
+ * Truncated responses are not parsed beyond their header. The OPT pseudo-record of servers
+ * supporting EDNS(0) is read from the additional section, and its extended RCODE bits are
+ * combined with the RCODE of the header. In verbose mode, the header and every record of the
+ * response are traced with the {@link DNSTracer}.
+ */
 public class DNSResponseParser {
+    public static final String NAME_ERROR_MESSAGE = "Name Error - The domain name referenced in the query does not exist";
+    private static final int RCODE_NAME_ERROR = 3;
     private static DNSCache cache = DNSCache.getInstance();
-    private int currentDataIndex = 0;
-    private byte[] data;
+    private ByteBuffer data;
     private int parsedId;
     private int QDCOUNT;
     private int ANCOUNT;
@@ -17,192 +28,213 @@ public class DNSResponseParser {
     private int ARCOUNT;
     private DNSNode dnsNode;
     private boolean isAuthoritativeAnswer;
+    private boolean isNameError;
+    private boolean isTruncated;
+    private boolean hasEdns;
+    private int ednsPayloadSize;
+    private int ednsVersion;
+    private int rcode;
     private boolean isVerbose;
+    private int[] recordOffsets;
+    private ResourceRecordView recordView;
     public ArrayList<String> nameServerDomainNames;
 
 
     public DNSResponseParser(DatagramPacket packet, DNSNode node, boolean isVerbose) {
-        this.data = packet.getData();
+        this(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).slice(), node, isVerbose);
+    }
+
+    /** Creates a parser that reads a response directly from a buffer, which may be a direct
+     * buffer. The response must start at position 0 of the buffer; the buffer is not copied
+     * and its position is not changed.
+     */
+    public DNSResponseParser(ByteBuffer packet, DNSNode node, boolean isVerbose) {
+        this.data = packet;
         this.dnsNode = node;
         this.isVerbose = isVerbose;
+        this.recordView = new ResourceRecordView(packet);
         nameServerDomainNames = new ArrayList<>();
     }
 
     public void parse() throws Exception{
+        long start = System.nanoTime();
+        try {
+            parseResponse();
+        } finally {
+            DNSStats.getInstance().recordParse(System.nanoTime() - start);
+        }
+    }
+
+    private void parseResponse() throws Exception {
         parseHeader();
-        parseQuestionSection();
+        if (this.isTruncated)
+            return;                                                 //records are incomplete, the query is retried over TCP
+        int offset = skipQuestionSection(12);
+        indexResourceRecords(offset);
+        if (this.isTruncated)
+            return;
         parseResourceRecords();
+        if (this.rcode > 15)
+            throw new Exception("Server failure - The name server returned extended RCODE " + this.rcode
+                    + (this.ednsVersion != 0 ? " for EDNS version " + this.ednsVersion : ""));
+        cacheNegativeResult();
+        if (this.isNameError)
+            throw new Exception(NAME_ERROR_MESSAGE);
     }
 
     private void parseHeader() throws Exception {
-        this.parsedId =  convertToUnsignedInt(this.data[0], this.data[1]);
-        this.isAuthoritativeAnswer = getNthBitFromLeftForByte(6, this.data[2]) > 0;
-        failIfTruncated(getNthBitFromLeftForByte(7, this.data[2]));
-        int RCODE = 0;
-        for(int i=5; i<8;i++){
-            RCODE = ((RCODE << 1) | getNthBitFromLeftForByte(i, this.data[3]));
-        }
+        this.parsedId = DNSWireFormat.readUnsignedShort(this.data, 0);
+        this.isAuthoritativeAnswer = getNthBitFromLeftForByte(6, this.data.get(2)) > 0;
+        this.isTruncated = getNthBitFromLeftForByte(7, this.data.get(2)) > 0;
+        int RCODE = this.data.get(3) & 0x0F;                        //RCODE is the low 4 bits of the 4th byte
+        this.rcode = RCODE;
+        this.isNameError = RCODE == RCODE_NAME_ERROR;
         processRcode(RCODE);
-        this.QDCOUNT = convertToUnsignedInt(this.data[4], this.data[5]);
-        this.ANCOUNT = convertToUnsignedInt(this.data[6], this.data[7]);
-        this.NSCOUNT = convertToUnsignedInt(this.data[8], this.data[9]);
-        this.ARCOUNT = convertToUnsignedInt(this.data[10], this.data[11]);
-        if (this.isVerbose){
-            System.out.println("Response ID: " + this.parsedId
-            + " Authoritative = " + this.isAuthoritativeAnswer);
-        }
-        this.currentDataIndex = 12;
+        this.QDCOUNT = DNSWireFormat.readUnsignedShort(this.data, 4);
+        this.ANCOUNT = DNSWireFormat.readUnsignedShort(this.data, 6);
+        this.NSCOUNT = DNSWireFormat.readUnsignedShort(this.data, 8);
+        this.ARCOUNT = DNSWireFormat.readUnsignedShort(this.data, 10);
+        if (this.isVerbose)
+            DNSTracer.getInstance().traceResponse(this.parsedId, this.isAuthoritativeAnswer);
     }
 
     // If false, then this is not the response for query
     public boolean checkValidTransactionID(int queryTID){
-        int responseTID = convertToUnsignedInt(this.data[0], this.data[1]);
+        int responseTID = DNSWireFormat.readUnsignedShort(this.data, 0);
         return (queryTID==responseTID);
     }
 
-    private void parseQuestionSection() {
+    private int skipQuestionSection(int offset) {
         for(int i = 0; i < this.QDCOUNT; i++){
-            parseQuery();
+            offset = DNSWireFormat.skipName(this.data, offset) + 4;     // +4 for qtype and qclass
         }
+        return offset;
     }
 
-    private void parseQuery() {
-        parseDomainName(this.currentDataIndex);
-        int qname = convertToUnsignedInt(this.data[currentDataIndex], this.data[currentDataIndex + 1]);
-        currentDataIndex += 2;      // +2 for qname
-        int qtype = convertToUnsignedInt(this.data[currentDataIndex], this.data[currentDataIndex + 1]);
-        currentDataIndex += 2;      // +2 for qtype
+    /** Finds where each resource record starts, without decoding any of them. Only record
+     * names and data lengths are read. A response whose records do not fit in the buffer was cut
+     * short in transit (e.g., a server sent a datagram larger than the payload size advertised
+     * in the query), and is handled as a truncated response.
+     */
+    private void indexResourceRecords(int offset) {
+        this.recordOffsets = new int[this.ANCOUNT + this.NSCOUNT + this.ARCOUNT];
+        try {
+            for(int i = 0; i < this.recordOffsets.length; i++) {
+                this.recordOffsets[i] = offset;
+                offset = this.recordView.moveTo(offset).getEndOffset();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            offset = Integer.MAX_VALUE;
+        }
+        if (offset > this.data.limit())
+            this.isTruncated = true;
     }
 
     private void parseResourceRecords() {
         if(this.isVerbose)
-            System.out.println("  Answers (" + this.ANCOUNT + ")");
+            DNSTracer.getInstance().traceSection(0, this.ANCOUNT);
         for(int i = 0; i < this.ANCOUNT; i++) {
-            parseResourceRecord();
+            parseResourceRecord(getRecord(i), true);
         }
         if(this.isVerbose)
-            System.out.println("  Nameservers (" + this.NSCOUNT + ")");
-        for(int i = 0; i < this.NSCOUNT; i++) {
-            parseResourceRecord();
+            DNSTracer.getInstance().traceSection(1, this.NSCOUNT);
+        for(int i = this.ANCOUNT; i < this.ANCOUNT + this.NSCOUNT; i++) {
+            parseResourceRecord(getRecord(i), true);
         }
         if(this.isVerbose)
-            System.out.println("  Additional information (" + this.ARCOUNT + ")");
-        for(int i = 0; i < this.ARCOUNT; i++) {
-            parseResourceRecord();
+            DNSTracer.getInstance().traceSection(2, this.ARCOUNT);
+        for(int i = this.ANCOUNT + this.NSCOUNT; i < this.recordOffsets.length; i++) {
+            ResourceRecordView record = getRecord(i);
+            if (record.getType() == RecordType.OPT)
+                parseOptRecord(record);
+            boolean isGlue = isNameServerAddress(record);
+            if (this.isVerbose || isGlue)
+                parseResourceRecord(record, isGlue);
         }
     }
 
-    private void parseResourceRecord(){
-        String name = parseDomainName(this.currentDataIndex);
-        // parseDomainName updates the data index
-        RecordType type = RecordType.getByCode(convertToUnsignedInt(this.data[this.currentDataIndex], this.data[this.currentDataIndex + 1]));
-        this.currentDataIndex += 2;
-        int recordClass = convertToUnsignedInt(this.data[this.currentDataIndex], this.data[this.currentDataIndex + 1]);
-        this.currentDataIndex += 2;
-        long ttl = convertTo32BitLong();
-        this.currentDataIndex += 4;
-        int rDataLength = convertToUnsignedInt(this.data[this.currentDataIndex], this.data[this.currentDataIndex + 1]);
-        this.currentDataIndex += 2;
-        if(type == RecordType.A) {
-            try {
-                InetAddress addr = parseIPV4address();
-                ResourceRecord resourceRecord = new ResourceRecord(name, type, ttl, addr);
-                cache.addResult(resourceRecord);
-                verbosePrintResourceRecord(resourceRecord, type.getCode());
-            } catch (UnknownHostException e){
-                System.err.println("Problem parsing IPV4address: " + e.getMessage());
-            }
-        } else if(type == RecordType.AAAA){
-            try {
-                InetAddress addr = parseIPV6address();
-                ResourceRecord resourceRecord = new ResourceRecord(name, type, ttl, addr);
-                cache.addResult(resourceRecord);
-                verbosePrintResourceRecord(resourceRecord, type.getCode());
-            } catch (UnknownHostException e){
-                System.err.println("Problem parsing IPV6address: " + e.getMessage());
-            }
-        }
-        else if (type == RecordType.NS){
-            String nameServerName = parseDomainName(this.currentDataIndex);
-            nameServerDomainNames.add(nameServerName);
-            ResourceRecord resourceRecord = new ResourceRecord(name, type, ttl, nameServerName);
-            cache.addResult(resourceRecord);
-            verbosePrintResourceRecord(resourceRecord, type.getCode());
-        } else if (type == RecordType.CNAME){
-            String CName = parseDomainName(this.currentDataIndex);
-            ResourceRecord resourceRecord = new ResourceRecord(name, type, ttl, CName);
-            cache.addResult(resourceRecord);
-            verbosePrintResourceRecord(resourceRecord, type.getCode());
-        } else{  //case for finding a record we are not expected to get any data out of
-            parseDomainName(this.currentDataIndex);
-            ResourceRecord resourceRecord = new ResourceRecord(name, type, ttl, "----");
-            verbosePrintResourceRecord(resourceRecord, type.getCode());
-        }
+    /** Reads the OPT pseudo-record (RFC 6891). Its class is the UDP payload size supported by
+     * the server, and its TTL holds the upper 8 bits of the RCODE, the EDNS version and flags.
+     */
+    private void parseOptRecord(ResourceRecordView record) {
+        long ttl = record.getTTL();
+        this.hasEdns = true;
+        this.ednsPayloadSize = record.getRecordClass();
+        this.ednsVersion = (int) ((ttl >>> 16) & 0xFF);
+        this.rcode |= (int) (ttl >>> 24) << 4;
     }
 
-    private InetAddress parseIPV4address() throws UnknownHostException{
-        InetAddress address = InetAddress.getByAddress(new byte[]{
-                (byte)(this.data[this.currentDataIndex] & 0xFF),
-                (byte)(this.data[this.currentDataIndex + 1] & 0xFF),
-                (byte)(this.data[this.currentDataIndex + 2] & 0xFF),
-                (byte)(this.data[this.currentDataIndex + 3] & 0xFF)});
-        this.currentDataIndex += 4;
-        return address;
+    /** Returns true if a record holds the address of one of the name servers listed in the
+     * answer or authority sections (i.e., it is a glue record).
+     */
+    private boolean isNameServerAddress(ResourceRecordView record) {
+        RecordType type = record.getType();
+        if (type != RecordType.A && type != RecordType.AAAA)
+            return false;
+        for (String nameServer : this.nameServerDomainNames)
+            if (record.hostNameEquals(nameServer))
+                return true;
+        return false;
     }
 
-    private InetAddress parseIPV6address() throws UnknownHostException{
-        byte[] ipv6Bytes = new byte[16];
-        for(int i = 0; i < 16; i++){
-            ipv6Bytes[i] = (byte)(this.data[this.currentDataIndex] & 0xFF);
-            this.currentDataIndex++;
+    private void parseResourceRecord(ResourceRecordView view, boolean addToCache){
+        RecordType type = view.getType();
+        ResourceRecord resourceRecord;
+        try {
+            resourceRecord = view.toResourceRecord();
+        } catch (UnknownHostException e){
+            System.err.println("Problem parsing " + (type == RecordType.A ? "IPV4" : "IPV6") + "address: " + e.getMessage());
+            return;
         }
-        return InetAddress.getByAddress(ipv6Bytes);
-    }
-
-    private boolean isPointer(byte inputByte){
-        return ( (getNthBitFromLeftForByte (1, inputByte)> 0)
-                && (getNthBitFromLeftForByte(2, inputByte) > 0));
-    }
-
-    private long convertTo32BitLong(){
-        //source: https://stackoverflow.com/questions/13203426/convert-4-bytes-to-an-unsigned-32-bit-integer-and-storing-it-in-a-long
-        long value = this.data[currentDataIndex + 3] & 0xFF;
-        value |= (this.data[currentDataIndex + 2] << 8) & 0xFFFF;
-        value |= (this.data[currentDataIndex + 1] << 16) & 0xFFFFFF;
-        value |= (this.data[currentDataIndex] << 24) & 0xFFFFFFFF;
-        return value;
+        if (type == RecordType.NS){
+            nameServerDomainNames.add(resourceRecord.getTextResult());
+        }
+        if (addToCache && (type == RecordType.A || type == RecordType.AAAA || type == RecordType.NS || type == RecordType.CNAME)) {
+            cache.addResult(resourceRecord);
+        }
+        verbosePrintResourceRecord(resourceRecord, view.getTypeCode());
     }
 
-    private String parseDomainName(int dataOffset) {
-        List<String> labels = new ArrayList<>();
-        int currentByte = convertToUnsignedInt(this.data[dataOffset]);
-        while(currentByte != 0  && !isPointer((byte) (currentByte & 0xFF))) {
-            int labelLength = currentByte;
-            dataOffset++;
-            char[] chars = new char[labelLength];
-            for (int i = 0; i < labelLength; i++) {
-                chars[i] = (char) convertToUnsignedInt(this.data[dataOffset]);
-                dataOffset++;
+    /** Caches a negative result for the queried node if the response is a name error, or an
+     * authoritative answer without any record. The negative TTL is the smaller of the TTL of
+     * the SOA record in the authority section and its MINIMUM field (RFC 2308). Responses
+     * without an SOA record are not cached. Name errors reached through a CNAME apply to the
+     * end of the chain rather than to the queried name, so they are not cached either.
+     *
+     * The SOA record itself is cached as well, with its data in master file format, so that the
+     * resolver daemon can include it in the negative responses it sends.
+     */
+    private void cacheNegativeResult() {
+        if (this.ANCOUNT > 0 || !(this.isNameError || this.isAuthoritativeAnswer))
+            return;
+        for (int i = this.ANCOUNT; i < this.ANCOUNT + this.NSCOUNT; i++) {
+            ResourceRecordView record = getRecord(i);
+            if (record.getType() == RecordType.SOA) {
+                long ttl = Math.min(record.getTTL(), record.getSOAMinimum());
+                cache.addResult(new ResourceRecord(record.getNode(), record.getTTL(), record.getSOAData()));
+                cache.addNegativeResult(new ResourceRecord(this.dnsNode, ttl,
+                        this.isNameError ? DNSCache.NXDOMAIN : DNSCache.NODATA));
+                return;
             }
-            String labelContent = (String.valueOf(chars));
-            labels.add(labelContent);
-            currentByte = convertToUnsignedInt(this.data[dataOffset]);
         }
+    }
 
-        String domainName = String.join(".", labels);
-        if (isPointer((byte) (currentByte & 0xFF))) {
-            int twoBytesIncludingTheOffset = convertToUnsignedInt(this.data[dataOffset], this.data[dataOffset + 1]);
-            int pointerOffset = twoBytesIncludingTheOffset & 0b0011111111111111;
-            String domainNameOfPointer = parseDomainName(pointerOffset);
-            if(domainName.length() > 0) {
-                domainName = domainName.concat(".");
-            }
-            domainName = domainName.concat(domainNameOfPointer);
-            dataOffset++;
-        }
+    /** Returns the number of resource records in the response, including all three sections.
+     * Only valid after the response has been parsed.
+     */
+    public int getRecordCount() {
+        return this.recordOffsets.length;
+    }
 
-        this.currentDataIndex = dataOffset+1;
-        return domainName;
+    /** Returns a view of a resource record in the response. Records are numbered in order, from
+     * the first answer to the last additional record. The returned view is shared by all calls
+     * to this method on the same parser, so it is only valid until the next call.
+     *
+     * @param index Position of the record in the response.
+     * @return A view of the record, decoded only when its fields are read.
+     */
+    public ResourceRecordView getRecord(int index) {
+        return this.recordView.moveTo(this.recordOffsets[index]);
     }
 
     private void processRcode(int rCode) throws Exception {
@@ -215,7 +247,7 @@ public class DNSResponseParser {
                 throw new Exception("Server failure - The name server was unable to " +
                         "process this query due to a problem with the name server.");
             case(3):
-                throw new Exception("Name Error - The domain name referenced in the query does not exist");
+                break;                                              //negative result is cached once the records are parsed
             case(4):
                 throw new Exception(" Not Implemented - The name server does\n" +
                         "                                not support the requested kind of query");
@@ -226,22 +258,12 @@ public class DNSResponseParser {
         }
     }
 
-    private void failIfTruncated(int truncatedBit) throws Exception{
-        if(truncatedBit == 1) {
-            throw new Exception("Failed because response was too large");
-        }
-    }
-
-    private static int convertToUnsignedInt(byte byte1) {
-        return byte1 & 0xFF;
-    }
-
-    private static int convertToUnsignedInt(byte byte1, byte byte2){
-        int ret = 0;
-        ret |= byte1 & 0xFF;
-        ret <<=8;
-        ret |= byte2 & 0xFF;
-        return ret;
+    /** Returns true if the response was truncated because it did not fit in a UDP datagram. The
+     * records of a truncated response are not parsed, and the query should be sent again over
+     * TCP.
+     */
+    public boolean isTruncated() {
+        return this.isTruncated;
     }
 
     public int getNthBitFromLeftForByte(int position, Byte input){
@@ -250,10 +272,33 @@ public class DNSResponseParser {
 
     private void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
         if (this.isVerbose)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+            DNSTracer.getInstance().traceRecord(record, rtype);
+    }
+
+    /** Returns true if the server reported an error other than a name error, i.e., the server
+     * itself could not answer the query. Only valid after the header has been parsed.
+     */
+    public boolean isServerFailure() {
+        return this.rcode != 0 && this.rcode != RCODE_NAME_ERROR;
+    }
+
+    /** Returns the RCODE of the response, including the extended bits of the OPT record.
+     */
+    public int getRcode() {
+        return this.rcode;
+    }
+
+    /** Returns true if the response has an OPT record, i.e., the server supports EDNS.
+     */
+    public boolean hasEdns() {
+        return this.hasEdns;
+    }
+
+    /** Returns the UDP payload size advertised by the server in its OPT record, or 0 if the
+     * response has none.
+     */
+    public int getEdnsPayloadSize() {
+        return this.ednsPayloadSize;
     }
 
     public boolean getIsAuthoritativeAnswer(){
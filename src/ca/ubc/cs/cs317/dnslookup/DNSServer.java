@@ -0,0 +1,304 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/** Recursive resolver daemon serving DNS over UDP and TCP, so that stub resolvers of other
+ * processes can share the resolver and its cache. A receiver thread reads queries from the UDP
+ * socket and hands each one to a pool of worker threads, which resolve the queried node with the
+ * iterative resolver and send back the response. When every worker is busy and the backlog is
+ * full, new queries are dropped, and clients retransmit them as they would for a lost packet.
+ *
+ * Clients retry over TCP, on the same port, when a UDP response is truncated. Each TCP connection
+ * is served by its own thread, which answers the length-prefixed queries sent on it in order
+ * (RFC 7766). At most MAX_TCP_CLIENTS connections are served at the same time, and connections
+ * idle for TCP_IDLE_TIMEOUT_MILLIS are closed.
+ *
+ * Answers include the CNAME records leading from the queried name to its canonical name. Names
+ * known not to exist are answered with NXDOMAIN, and lookups that fail with SERVFAIL. Negative
+ * responses (NXDOMAIN, and NODATA, i.e., no record of the queried type) include the cached SOA
+ * record of the zone in their authority section, so that clients can cache them (RFC 2308).
+ */
+class DNSServer implements Closeable {
+
+    private static final int MAX_QUERY_LENGTH = 512;
+    private static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    private static final int MAX_BACKLOG = 1024;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final int MAX_TCP_MESSAGE_LENGTH = 65535;
+    private static final int MAX_TCP_CLIENTS = 64;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private final DatagramChannel channel;
+    private final Function<DNSNode, Set<ResourceRecord>> resolver;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final ThreadPoolExecutor workers;
+    private final Thread receiverThread;
+    private final ServerSocket tcpListener;
+    private final Semaphore tcpClients = new Semaphore(MAX_TCP_CLIENTS);
+    private final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
+
+    /** Opens the server sockets and starts the receiver and TCP listener threads.
+     *
+     * @param address  Address and port the server listens on, for both UDP and TCP.
+     * @param workers  Number of queries resolved at the same time.
+     * @param resolver Function resolving a node, adding the results to the cache.
+     * @throws IOException If the socket could not be opened.
+     */
+    DNSServer(InetSocketAddress address, int workers, Function<DNSNode, Set<ResourceRecord>> resolver) throws IOException {
+        this.resolver = resolver;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(address);
+        this.tcpListener = new ServerSocket();
+        try {
+            this.tcpListener.bind(new InetSocketAddress(address.getAddress(), getAddress().getPort()));
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_BACKLOG), runnable -> {
+                    Thread thread = new Thread(runnable, "DNS-server-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.workers.allowCoreThreadTimeOut(true);
+
+        receiverThread = new Thread(this::receiveForever, "DNS-server");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+
+        Thread listenerThread = new Thread(this::acceptForever, "DNS-server-tcp");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    /** Returns the address and port the server listens on.
+     */
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /** Waits until the server is closed.
+     */
+    void awaitTermination() throws InterruptedException {
+        receiverThread.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        tcpListener.close();
+        for (Socket connection : openConnections)
+            connection.close();
+        workers.shutdownNow();
+    }
+
+    private void receiveForever() {
+        while (channel.isOpen()) {
+            try {
+                ByteBuffer query = ByteBuffer.allocate(MAX_QUERY_LENGTH);
+                SocketAddress client = channel.receive(query);
+                query.flip();
+                workers.execute(() -> answer(query, client));
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("DNS server failure: " + e.getMessage());
+            }
+        }
+    }
+
+    private void acceptForever() {
+        while (!tcpListener.isClosed()) {
+            try {
+                Socket connection = tcpListener.accept();
+                if (!tcpClients.tryAcquire()) {
+                    connection.close();
+                    continue;
+                }
+                Thread thread = new Thread(() -> serveConnection(connection), "DNS-server-tcp-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!tcpListener.isClosed())
+                    System.err.println("DNS server failure: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Answers the queries sent on a TCP connection, each prefixed by its 2-byte length, until
+     * the client closes the connection or leaves it idle.
+     */
+    private void serveConnection(Socket connection) {
+        openConnections.add(connection);
+        try (Socket socket = connection) {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                byte[] query;
+                try {
+                    query = new byte[in.readUnsignedShort()];
+                } catch (EOFException | SocketTimeoutException e) {
+                    return;
+                }
+                in.readFully(query);
+                byte[] response = createResponse(ByteBuffer.wrap(query), MAX_TCP_MESSAGE_LENGTH);
+                if (response == null)
+                    continue;
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!tcpListener.isClosed())
+                System.err.println("Could not answer " + connection.getRemoteSocketAddress() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Failed to answer query from " + connection.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            openConnections.remove(connection);
+            tcpClients.release();
+        }
+    }
+
+    private void answer(ByteBuffer query, SocketAddress client) {
+        try {
+            byte[] response = createResponse(query);
+            if (response != null)
+                channel.send(ByteBuffer.wrap(response), client);
+        } catch (IOException e) {
+            if (channel.isOpen())
+                System.err.println("Could not answer " + client + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Failed to answer query from " + client + ": " + e.getMessage());
+        }
+    }
+
+    /** Creates the response to a query received over UDP. Returns null for packets that should
+     * not be answered, i.e., packets too short to have a header and responses.
+     */
+    byte[] createResponse(ByteBuffer query) {
+        return createResponse(query, 0);
+    }
+
+    /** Creates the response to a query.
+     *
+     * @param query        Query packet.
+     * @param tcpMaxLength Maximum length of the response if the query was received over TCP, or 0
+     *                     if it was received over UDP.
+     * @return The response, or null if the query should not be answered.
+     */
+    private byte[] createResponse(ByteBuffer query, int tcpMaxLength) {
+        if (query.limit() < 12 || (query.get(2) & 0x80) != 0)
+            return null;
+        int id = DNSWireFormat.readUnsignedShort(query, 0);
+        boolean recursionDesired = (query.get(2) & 0x01) != 0;
+        int opcode = (query.get(2) >>> 3) & 0x0F;
+        int questionCount = DNSWireFormat.readUnsignedShort(query, 4);
+        int additionalCount = DNSWireFormat.readUnsignedShort(query, 10);
+
+        if (questionCount != 1)
+            return new DNSResponseGenerator(null, "", id, recursionDesired, MIN_UDP_PAYLOAD_SIZE, 0)
+                    .createResponse(DNSResponseGenerator.RCODE_FORMAT_ERROR);
+
+        String name;
+        byte[] question;
+        int typeCode;
+        int recordClass;
+        int maxLength = MIN_UDP_PAYLOAD_SIZE;
+        int ednsPayloadSize = 0;
+        try {
+            int questionEnd = DNSWireFormat.skipName(query, 12) + 4;
+            if (questionEnd > query.limit())
+                throw new IndexOutOfBoundsException();
+            name = DNSWireFormat.decodeName(query, 12);
+            question = new byte[questionEnd - 12];
+            for (int i = 0; i < question.length; i++)
+                question[i] = query.get(12 + i);
+            typeCode = DNSWireFormat.readUnsignedShort(query, questionEnd - 4);
+            recordClass = DNSWireFormat.readUnsignedShort(query, questionEnd - 2);
+
+            // A client supporting EDNS accepts responses up to the payload size it advertises
+            if (additionalCount > 0) {
+                ResourceRecordView record = new ResourceRecordView(query).moveTo(questionEnd);
+                if (record.getType() == RecordType.OPT) {
+                    maxLength = Math.max(MIN_UDP_PAYLOAD_SIZE, record.getRecordClass());
+                    ednsPayloadSize = DNSQueryGenerator.getUdpPayloadSize();
+                }
+            }
+            if (tcpMaxLength > 0)
+                maxLength = tcpMaxLength;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return new DNSResponseGenerator(null, "", id, recursionDesired, MIN_UDP_PAYLOAD_SIZE, 0)
+                    .createResponse(DNSResponseGenerator.RCODE_FORMAT_ERROR);
+        }
+
+        DNSResponseGenerator generator = new DNSResponseGenerator(question, name, id, recursionDesired,
+                maxLength, ednsPayloadSize);
+        RecordType type = RecordType.getByCode(typeCode);
+        if (opcode != 0 || recordClass != 1 || type == RecordType.OTHER || type == RecordType.OPT)
+            return generator.createResponse(DNSResponseGenerator.RCODE_NOT_IMPLEMENTED);
+
+        DNSNode node = DNSNode.of(name, type);
+        Set<ResourceRecord> results = resolver.apply(node);
+
+        // Answers start with the CNAME records leading to the canonical name, if any
+        List<ResourceRecord> answers = new ArrayList<>();
+        String canonicalName = name;
+        for (int i = 0; i < MAX_CNAME_CHAIN && type != RecordType.CNAME; i++) {
+            Set<ResourceRecord> cnames = cache.peekCachedResults(DNSNode.of(canonicalName, RecordType.CNAME));
+            if (cnames.isEmpty())
+                break;
+            ResourceRecord cname = cnames.iterator().next();
+            answers.add(cname);
+            canonicalName = cname.getTextResult();
+        }
+        answers.addAll(results);
+
+        int rcode = DNSResponseGenerator.RCODE_NO_ERROR;
+        List<ResourceRecord> authority = Collections.emptyList();
+        if (results.isEmpty()) {
+            ResourceRecord negativeResult = cache.getNegativeResult(DNSNode.of(canonicalName, type));
+            if (negativeResult != null && negativeResult.getTextResult().equals(DNSCache.NXDOMAIN))
+                rcode = DNSResponseGenerator.RCODE_NAME_ERROR;
+            else if (negativeResult == null && answers.isEmpty())
+                rcode = DNSResponseGenerator.RCODE_SERVER_FAILURE;
+            if (negativeResult != null) {
+                ResourceRecord soa = findZoneSOA(canonicalName);
+                if (soa != null)
+                    authority = Collections.singletonList(
+                            soa.getTTL() > negativeResult.getTTL() ? soa.withTTL(negativeResult.getTTL()) : soa);
+            }
+        }
+        return generator.createResponse(rcode, answers, authority);
+    }
+
+    /** Returns the cached SOA record of the closest zone enclosing a name, or null if none is
+     * cached.
+     */
+    private ResourceRecord findZoneSOA(String name) {
+        String zone = name;
+        while (true) {
+            for (ResourceRecord soa : cache.peekCachedResults(DNSNode.of(zone, RecordType.SOA)))
+                return soa;
+            if (zone.isEmpty())
+                return null;
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+    }
+}
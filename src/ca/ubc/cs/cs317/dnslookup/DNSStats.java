@@ -0,0 +1,194 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Statistics of the resolver: latency histograms of complete lookups and of response parsing,
+ * and counts of referrals followed, CNAME indirections and query timeouts. The latency of the
+ * queries sent to each name server is kept by the {@link NameServerTable}, and the cache counts
+ * its own insertions and expirations, and the hits and misses of the lookups requested by
+ * clients; this class gathers all of them for the stats command and for JMX.
+ *
+ * Statistics are recorded on every lookup, so recording only increments counters and never
+ * locks or allocates.
+ */
+class DNSStats implements DNSStatsMBean {
+
+    private static final String OBJECT_NAME = "ca.ubc.cs.cs317.dnslookup:type=DNSStats";
+
+    private static DNSStats instance = new DNSStats();
+
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LongAdder referrals = new LongAdder();
+    private final LongAdder cnameIndirections = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final DNSCache cache = DNSCache.getInstance();
+    private final NameServerTable nameServers = NameServerTable.getInstance();
+
+    static DNSStats getInstance() {
+        return instance;
+    }
+
+    /** Publishes the statistics as an MBean of the platform MBean server. Does nothing if they
+     * were already published.
+     */
+    static void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name))
+                server.registerMBean(new StandardMBean(instance, DNSStatsMBean.class), name);
+        } catch (JMException e) {
+            System.err.println("Could not register statistics MBean: " + e.getMessage());
+        }
+    }
+
+    /** Records the time taken by a complete lookup, from the call to its results.
+     */
+    void recordLookup(long nanos) {
+        lookupLatency.record(nanos);
+    }
+
+    /** Records the time taken to parse a response and cache its records.
+     */
+    void recordParse(long nanos) {
+        parseLatency.record(nanos);
+    }
+
+    /** Records a referral to the name servers of a subzone being followed.
+     */
+    void recordReferral() {
+        referrals.increment();
+    }
+
+    /** Records a lookup continuing with the canonical name of a CNAME record.
+     */
+    void recordCNameIndirection() {
+        cnameIndirections.increment();
+    }
+
+    /** Records a query to a name server that timed out.
+     */
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public double getLookupLatencyP50() {
+        return lookupLatency.getPercentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getLookupLatencyP99() {
+        return lookupLatency.getPercentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLookupLatencyP999() {
+        return lookupLatency.getPercentile(0.999) / 1e6;
+    }
+
+    @Override
+    public long getParseCount() {
+        return parseLatency.getCount();
+    }
+
+    @Override
+    public double getParseLatencyP50() {
+        return parseLatency.getPercentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getParseLatencyP99() {
+        return parseLatency.getPercentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getParseLatencyP999() {
+        return parseLatency.getPercentile(0.999) / 1e6;
+    }
+
+    @Override
+    public String[] getServerLatencies() {
+        List<String> lines = new ArrayList<>();
+        nameServers.forEach((server, stats) -> lines.add(
+                server.getHostAddress() + ": " + stats.getQueryLatency().summary()));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheInsertions() {
+        return cache.getInsertionCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return cache.getExpirationCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getReferrals() {
+        return referrals.sum();
+    }
+
+    @Override
+    public long getCNameIndirections() {
+        return cnameIndirections.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public void reset() {
+        lookupLatency.reset();
+        parseLatency.reset();
+        referrals.reset();
+        cnameIndirections.reset();
+        timeouts.reset();
+        cache.resetCounters();
+        nameServers.forEach((server, stats) -> stats.getQueryLatency().reset());
+    }
+}
@@ -0,0 +1,52 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Management interface of {@link DNSStats}, published through JMX under
+ * ca.ubc.cs.cs317.dnslookup:type=DNSStats. Latencies are in milliseconds.
+ */
+public interface DNSStatsMBean {
+
+    long getLookupCount();
+
+    double getLookupLatencyP50();
+
+    double getLookupLatencyP99();
+
+    double getLookupLatencyP999();
+
+    long getParseCount();
+
+    double getParseLatencyP50();
+
+    double getParseLatencyP99();
+
+    double getParseLatencyP999();
+
+    /** Returns a summary of the latency of the queries sent to each name server, one line per
+     * server.
+     */
+    String[] getServerLatencies();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheInsertions();
+
+    long getCacheExpirations();
+
+    long getCacheEvictions();
+
+    int getCacheSize();
+
+    long getReferrals();
+
+    long getCNameIndirections();
+
+    long getTimeouts();
+
+    /** Clears the latency histograms and the counters above, except for the cache size and
+     * evictions. The timeouts and failures kept per name server are not cleared, since they are
+     * used to rank the servers.
+     */
+    void reset();
+}
@@ -0,0 +1,291 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Tracer of the queries sent and responses received by the resolver. Tracing a query, a
+ * response or a record only writes a fixed-size entry into a ring buffer owned by the calling
+ * thread: a few numbers, and references to immutable values the resolver already has (the node
+ * and server address of a query, or the name and result of a record). Nothing is formatted or
+ * printed on the resolution thread, and threads never contend with each other, so tracing can
+ * stay enabled under load. Entries never refer to mutable objects such as records, so they
+ * print the values traced, and the references of an entry are cleared once it has been drained,
+ * so the ring buffers do not keep anything reachable after it is printed.
+ *
+ * Entries are formatted later, by a drainer thread that prints them every
+ * DRAIN_INTERVAL_MILLIS while tracing is ON, or on demand when the trace is dumped. Entries of
+ * each thread are printed together, so the queries of concurrent lookups are not interleaved.
+ * In RECORD mode, entries are only kept until the trace is dumped; each ring buffer holds the
+ * last dnslookup.trace.bufferEntries (default DEFAULT_BUFFER_ENTRIES) entries of its thread,
+ * and older entries are overwritten.
+ *
+ * Ring buffers are only allocated for threads that trace something. Buffers of threads that
+ * have terminated are reused by new threads, and at most MAX_BUFFERS are allocated; entries of
+ * threads without a buffer are dropped.
+ */
+class DNSTracer {
+
+    /** Tracing mode: OFF records nothing, RECORD keeps entries until they are dumped, and ON
+     * prints them continuously.
+     */
+    enum Mode { OFF, RECORD, ON }
+
+    private static final int DEFAULT_BUFFER_ENTRIES = 1024;
+    private static final int MAX_BUFFERS = 256;
+    private static final long DRAIN_INTERVAL_MILLIS = 50;
+
+    private static final int ENTRY_WORDS = 4;                       // timestamp, event, two arguments
+    private static final int ENTRY_REFS = 2;
+    private static final int EVENT_QUERY = 1;
+    private static final int EVENT_RESPONSE = 2;
+    private static final int EVENT_SECTION = 3;
+    private static final int EVENT_RECORD = 4;
+    private static final int EVENT_TRUNCATED = 5;
+
+    private static final String[] SECTION_NAMES = {"Answers", "Nameservers", "Additional information"};
+
+    private static DNSTracer instance = new DNSTracer();
+
+    private final int bufferEntries = Integer.highestOneBit(
+            Math.max(16, Integer.getInteger("dnslookup.trace.bufferEntries", DEFAULT_BUFFER_ENTRIES)));
+    private final List<TraceBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<TraceBuffer> localBuffer = new ThreadLocal<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Mode mode = Mode.OFF;
+    private Thread drainer;
+
+    static DNSTracer getInstance() {
+        return instance;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /** Returns true if events are currently recorded, i.e., if the mode is ON or RECORD.
+     */
+    boolean isEnabled() {
+        return mode != Mode.OFF;
+    }
+
+    /** Changes the tracing mode, starting or stopping the drainer thread as needed. Entries
+     * recorded while the mode was ON are printed before the drainer stops.
+     */
+    synchronized void setMode(Mode newMode) {
+        Mode oldMode = mode;
+        mode = newMode;
+        if (newMode == Mode.ON && drainer == null) {
+            drainer = new Thread(this::drainForever, "DNS-trace-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        } else if (newMode != Mode.ON && drainer != null) {
+            drainer.interrupt();
+            drainer = null;
+            if (oldMode == Mode.ON)
+                flush();
+        }
+    }
+
+    void traceQuery(int transactionID, DNSNode node, InetAddress server) {
+        if (mode != Mode.OFF)
+            append(EVENT_QUERY, transactionID, 0, node, server);
+    }
+
+    void traceResponse(int transactionID, boolean authoritative) {
+        if (mode != Mode.OFF)
+            append(EVENT_RESPONSE, transactionID, authoritative ? 1 : 0, null, null);
+    }
+
+    /** Traces the start of a section of a response.
+     *
+     * @param section Index of the section: 0 for answers, 1 for name servers, 2 for additional records.
+     * @param count   Number of records in the section.
+     */
+    void traceSection(int section, int count) {
+        if (mode != Mode.OFF)
+            append(EVENT_SECTION, section, count, null, null);
+    }
+
+    /** Traces a record of a response. The TTL is captured right away, since it decreases until
+     * the entry is printed.
+     *
+     * @param record   Record read from the response.
+     * @param typeCode Type code of the record, printed for types the resolver does not know.
+     */
+    void traceRecord(ResourceRecord record, int typeCode) {
+        if (mode != Mode.OFF)
+            append(EVENT_RECORD, typeCode, record.getTTL(), record.getHostName(), record.getTextResult());
+    }
+
+    void traceTruncated() {
+        if (mode != Mode.OFF)
+            append(EVENT_TRUNCATED, 0, 0, null, null);
+    }
+
+    /** Prints every entry recorded since the last flush, thread by thread.
+     */
+    void flush() {
+        StringBuilder out = new StringBuilder();
+        synchronized (buffers) {
+            for (TraceBuffer buffer : buffers)
+                buffer.drainTo(out);
+            long droppedEntries = dropped.sumThenReset();
+            if (droppedEntries > 0)
+                out.append("(").append(droppedEntries).append(" trace entries dropped)\n");
+        }
+        if (out.length() > 0)
+            System.out.print(out);
+    }
+
+    private void drainForever() {
+        while (mode == Mode.ON) {
+            try {
+                Thread.sleep(DRAIN_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                System.err.println("Trace drain failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void append(int event, long first, long second, Object firstRef, Object secondRef) {
+        TraceBuffer buffer = localBuffer.get();
+        if (buffer == null && (buffer = acquireBuffer()) == null) {
+            dropped.increment();
+            return;
+        }
+        buffer.append(event, first, second, firstRef, secondRef);
+    }
+
+    /** Assigns a ring buffer to the calling thread, reusing the buffer of a terminated thread if
+     * there is one. Returns null if MAX_BUFFERS are already in use.
+     */
+    private TraceBuffer acquireBuffer() {
+        Thread current = Thread.currentThread();
+        TraceBuffer acquired = null;
+        synchronized (buffers) {
+            for (TraceBuffer buffer : buffers)
+                if (!buffer.owner.isAlive()) {
+                    buffer.owner = current;
+                    acquired = buffer;
+                    break;
+                }
+            if (acquired == null && buffers.size() < MAX_BUFFERS) {
+                acquired = new TraceBuffer(bufferEntries, current);
+                buffers.add(acquired);
+            }
+        }
+        if (acquired != null)
+            localBuffer.set(acquired);
+        return acquired;
+    }
+
+    /** Ring buffer with a single writer, its owner thread, and a single reader at a time, which
+     * holds the buffers lock. The writer publishes each entry by incrementing the write count
+     * after filling it. The reader copies the entries it has not read yet, and then discards
+     * those the writer may have overwritten while they were being copied, including the one in
+     * the slot the writer may be filling: while the write count is w, slot w & mask still holds
+     * entry w - capacity, but is already being overwritten. Once the entries are formatted, the
+     * reader clears the references of those whose slots the writer has not reused yet. If the
+     * writer laps the reader while it does so, a new entry may lose its references, and is then
+     * skipped when it is formatted.
+     */
+    private static class TraceBuffer {
+        private final long[] words;
+        private final Object[] refs;
+        private final int mask;
+        private final AtomicLong written = new AtomicLong();
+        private long read;
+        private volatile Thread owner;
+
+        private TraceBuffer(int entries, Thread owner) {
+            this.words = new long[entries * ENTRY_WORDS];
+            this.refs = new Object[entries * ENTRY_REFS];
+            this.mask = entries - 1;
+            this.owner = owner;
+        }
+
+        private void append(int event, long first, long second, Object firstRef, Object secondRef) {
+            long index = written.get();
+            int slot = (int) (index & mask);
+            words[slot * ENTRY_WORDS] = System.nanoTime();
+            words[slot * ENTRY_WORDS + 1] = event;
+            words[slot * ENTRY_WORDS + 2] = first;
+            words[slot * ENTRY_WORDS + 3] = second;
+            refs[slot * ENTRY_REFS] = firstRef;
+            refs[slot * ENTRY_REFS + 1] = secondRef;
+            written.lazySet(index + 1);
+        }
+
+        private void drainTo(StringBuilder out) {
+            long end = written.get();
+            long start = Math.max(read, end - (mask + 1));
+            int count = (int) (end - start);
+            long[] copiedWords = new long[count * ENTRY_WORDS];
+            Object[] copiedRefs = new Object[count * ENTRY_REFS];
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((start + i) & mask);
+                System.arraycopy(words, slot * ENTRY_WORDS, copiedWords, i * ENTRY_WORDS, ENTRY_WORDS);
+                System.arraycopy(refs, slot * ENTRY_REFS, copiedRefs, i * ENTRY_REFS, ENTRY_REFS);
+            }
+            long firstIntact = Math.max(start, written.get() + 1 - (mask + 1));
+            if (firstIntact > read)
+                out.append("(").append(firstIntact - read).append(" trace entries overwritten)\n");
+            for (long index = firstIntact; index < end; index++) {
+                int i = (int) (index - start);
+                format(out, copiedWords, i * ENTRY_WORDS, copiedRefs, i * ENTRY_REFS);
+            }
+            read = end;
+
+            for (long index = Math.max(start, written.get() + 1 - (mask + 1)); index < end; index++) {
+                int slot = (int) (index & mask);
+                refs[slot * ENTRY_REFS] = null;
+                refs[slot * ENTRY_REFS + 1] = null;
+            }
+        }
+
+        /** Formats an entry. Entries whose references do not match their event are skipped, so
+         * that an entry torn by a concurrent write can never stop the drainer.
+         */
+        private static void format(StringBuilder out, long[] words, int word, Object[] refs, int ref) {
+            long first = words[word + 2];
+            long second = words[word + 3];
+            switch ((int) words[word + 1]) {
+                case EVENT_QUERY:
+                    if (!(refs[ref] instanceof DNSNode) || !(refs[ref + 1] instanceof InetAddress))
+                        break;
+                    DNSNode node = (DNSNode) refs[ref];
+                    out.append("\n\nQuery ID     ").append(first).append(' ').append(node.getHostName())
+                            .append("  ").append(node.getType())
+                            .append(" --> ").append(((InetAddress) refs[ref + 1]).getHostAddress()).append('\n');
+                    break;
+                case EVENT_RESPONSE:
+                    out.append("Response ID: ").append(first).append(" Authoritative = ").append(second != 0).append('\n');
+                    break;
+                case EVENT_SECTION:
+                    if (first < 0 || first >= SECTION_NAMES.length)
+                        break;
+                    out.append("  ").append(SECTION_NAMES[(int) first]).append(" (").append(second).append(")\n");
+                    break;
+                case EVENT_RECORD:
+                    if (!(refs[ref] instanceof String) || !(refs[ref + 1] instanceof String))
+                        break;
+                    RecordType type = RecordType.getByCode((int) first);
+                    out.append(String.format("       %-30s %-10d %-4s %s\n", refs[ref], second,
+                            type == RecordType.OTHER ? String.valueOf(first) : type, refs[ref + 1]));
+                    break;
+                case EVENT_TRUNCATED:
+                    out.append("Response truncated, retrying over TCP\n");
+                    break;
+            }
+        }
+    }
+}
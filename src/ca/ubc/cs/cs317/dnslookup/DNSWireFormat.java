@@ -0,0 +1,150 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Helper methods to read DNS messages in wire format directly from a buffer. All offsets are
+ * absolute positions in the buffer, so the buffer position is never changed and the same buffer
+ * may be read from several places without copying it.
+ */
+final class DNSWireFormat {
+
+    private static final int MAX_POINTER_JUMPS = 64;
+
+    private DNSWireFormat() {
+    }
+
+    /** Folds the case of a character in a domain name. Domain names are only case-insensitive
+     * for ASCII letters (RFC 4343), so other characters are left unchanged.
+     */
+    static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /** Folds the case of the first characters of a domain name, as toLowerCase(char) does.
+     *
+     * @param name   Domain name.
+     * @param length Number of characters of the name to keep.
+     */
+    static String toLowerCase(String name, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = toLowerCase(name.charAt(i));
+        return new String(chars);
+    }
+
+    static int readUnsignedByte(ByteBuffer data, int offset) {
+        return data.get(offset) & 0xFF;
+    }
+
+    static int readUnsignedShort(ByteBuffer data, int offset) {
+        return ((data.get(offset) & 0xFF) << 8) | (data.get(offset + 1) & 0xFF);
+    }
+
+    static long readUnsignedInt(ByteBuffer data, int offset) {
+        return data.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    private static boolean isPointer(int lengthByte) {
+        return (lengthByte & 0xC0) == 0xC0;
+    }
+
+    private static int pointerTarget(ByteBuffer data, int offset) {
+        return readUnsignedShort(data, offset) & 0x3FFF;
+    }
+
+    /** Returns the offset right after a domain name, without decoding it. A compressed name ends
+     * after its first pointer.
+     *
+     * @param data   Buffer containing the DNS message.
+     * @param offset Offset of the first label of the name.
+     * @return Offset of the first byte following the name.
+     */
+    static int skipName(ByteBuffer data, int offset) {
+        while (true) {
+            int length = readUnsignedByte(data, offset);
+            if (length == 0)
+                return offset + 1;
+            if (isPointer(length))
+                return offset + 2;
+            offset += length + 1;
+        }
+    }
+
+    /** Decodes a (possibly compressed) domain name, with labels separated by dots and without a
+     * trailing dot. The root name is decoded as an empty string.
+     *
+     * @param data   Buffer containing the DNS message.
+     * @param offset Offset of the first label of the name.
+     * @return The decoded domain name.
+     */
+    static String decodeName(ByteBuffer data, int offset) {
+        return decodeName(data, offset, false);
+    }
+
+    /** Decodes a (possibly compressed) domain name, optionally folding its case.
+     *
+     * @param data     Buffer containing the DNS message.
+     * @param offset   Offset of the first label of the name.
+     * @param foldCase Whether ASCII letters are converted to lower case.
+     * @return The decoded domain name.
+     */
+    static String decodeName(ByteBuffer data, int offset, boolean foldCase) {
+        StringBuilder name = new StringBuilder(32);
+        int jumps = 0;
+        while (true) {
+            int length = readUnsignedByte(data, offset);
+            if (length == 0)
+                return name.toString();
+            if (isPointer(length)) {
+                if (++jumps > MAX_POINTER_JUMPS)
+                    throw new IllegalArgumentException("Compression loop in domain name");
+                offset = pointerTarget(data, offset);
+                continue;
+            }
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 1; i <= length; i++) {
+                char c = (char) readUnsignedByte(data, offset + i);
+                name.append(foldCase ? toLowerCase(c) : c);
+            }
+            offset += length + 1;
+        }
+    }
+
+    /** Compares a (possibly compressed) domain name in the buffer with a name in dotted form,
+     * ignoring case, without decoding the name in the buffer.
+     *
+     * @param data   Buffer containing the DNS message.
+     * @param offset Offset of the first label of the name in the buffer.
+     * @param name   Domain name to compare with, without a trailing dot.
+     * @return true if both names are the same, ignoring case, and false otherwise.
+     */
+    static boolean nameEqualsIgnoreCase(ByteBuffer data, int offset, String name) {
+        int index = 0;
+        int jumps = 0;
+        while (true) {
+            int length = readUnsignedByte(data, offset);
+            if (length == 0)
+                return index == name.length();
+            if (isPointer(length)) {
+                if (++jumps > MAX_POINTER_JUMPS)
+                    return false;
+                offset = pointerTarget(data, offset);
+                continue;
+            }
+            if (index > 0) {
+                if (index >= name.length() || name.charAt(index) != '.')
+                    return false;
+                index++;
+            }
+            if (index + length > name.length())
+                return false;
+            for (int i = 1; i <= length; i++, index++) {
+                char c = (char) readUnsignedByte(data, offset + i);
+                if (toLowerCase(c) != toLowerCase(name.charAt(index)))
+                    return false;
+            }
+            offset += length + 1;
+        }
+    }
+}
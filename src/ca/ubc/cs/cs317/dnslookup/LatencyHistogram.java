@@ -0,0 +1,97 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Concurrent histogram of latencies, in nanoseconds. Values are counted in log-linear buckets:
+ * each power of two is split into SUB_BUCKETS buckets of equal width, so percentiles are exact
+ * to within about 12%, while the whole range from 1 ns to several minutes takes a few hundred
+ * counters. Recording a value only increments counters, without locking or allocating, so the
+ * histogram can be updated on every lookup.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Records a latency.
+     *
+     * @param nanos Latency in nanoseconds; negative values are counted as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /** Returns an upper bound of the latency below which a fraction of the recorded latencies
+     * fall, e.g., 0.99 for the 99th percentile, or 0 if nothing was recorded.
+     */
+    long getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(bucket), getMax());
+        }
+        return getMax();
+    }
+
+    /** Returns a one-line summary of the histogram, with latencies in milliseconds.
+     */
+    String summary() {
+        return String.format("count %d  mean %.3f  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f",
+                getCount(), getMean() / 1e6, getPercentile(0.50) / 1e6, getPercentile(0.99) / 1e6,
+                getPercentile(0.999) / 1e6, getMax() / 1e6);
+    }
+
+    void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            counts.set(bucket, 0);
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
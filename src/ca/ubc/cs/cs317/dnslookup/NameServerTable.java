@@ -0,0 +1,235 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Performance table of the name servers queried by the resolver, keyed by server address. For
+ * each server, the table keeps a smoothed round-trip time and its variance, computed as TCP does
+ * (RFC 6298), and a penalty for timeouts and failed responses. Penalties decay over time, with a
+ * half-life of PENALTY_HALF_LIFE_MILLIS, so a server that stopped responding for a while is
+ * eventually tried again, and its RTT updated if it recovered.
+ *
+ * The resolver uses the table to pick, among the servers of a referral, the one with the lowest
+ * expected latency. Servers that were never queried are given a small random expected latency,
+ * so that each of them is tried at least once before the table settles on the fastest one.
+ *
+ * The table also gives the time to wait for a response before retransmitting a query. As in TCP,
+ * the retransmission timeout is SRTT + 4 * RTTVAR, bounded by MIN_RTO_MILLIS and MAX_RTO_MILLIS,
+ * or INITIAL_RTO_MILLIS for servers that never responded. It doubles with each retransmission to
+ * the same server, with a random jitter so that retransmissions of many queries do not align.
+ */
+class NameServerTable {
+
+    private static final double RTT_GAIN = 1.0 / 8;                 // alpha in RFC 6298
+    private static final double VARIANCE_GAIN = 1.0 / 4;            // beta in RFC 6298
+    private static final double TIMEOUT_PENALTY_MILLIS = 1000;
+    private static final double FAILURE_PENALTY_MILLIS = 250;
+    private static final double PENALTY_HALF_LIFE_MILLIS = 60000;
+    private static final double UNKNOWN_RTT_MILLIS = 10;
+    private static final int MAX_SERVERS = 65536;
+    private static final long INITIAL_RTO_MILLIS = 400;
+    private static final long MIN_RTO_MILLIS = 50;
+    private static final long MAX_RTO_MILLIS = 5000;
+    private static final double RTO_JITTER = 0.25;
+
+    private static NameServerTable instance = new NameServerTable();
+
+    private final Map<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+    static NameServerTable getInstance() {
+        return instance;
+    }
+
+    /** Records a response received from a server.
+     *
+     * @param server    Address of the server.
+     * @param rttMillis Time between sending the query and receiving the response, in milliseconds.
+     */
+    void recordResponse(InetAddress server, double rttMillis) {
+        ServerStats stats = getStats(server);
+        if (stats != null) {
+            stats.updateRtt(rttMillis);
+            stats.queryLatency.record((long) (rttMillis * 1e6));
+        }
+    }
+
+    /** Records a query to a server that timed out.
+     */
+    void recordTimeout(InetAddress server) {
+        ServerStats stats = getStats(server);
+        if (stats != null)
+            stats.addPenalty(TIMEOUT_PENALTY_MILLIS, true);
+    }
+
+    /** Records a response from a server reporting an error other than a name error, e.g., a
+     * server failure or a refused query.
+     */
+    void recordFailure(InetAddress server) {
+        ServerStats stats = getStats(server);
+        if (stats != null)
+            stats.addPenalty(FAILURE_PENALTY_MILLIS, false);
+    }
+
+    /** Returns the time a query to a server is expected to take, in milliseconds, taking recent
+     * timeouts and failures into account. Servers that were never queried get a small random
+     * value.
+     */
+    double getExpectedLatency(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        if (stats == null || !stats.hasRtt())
+            return ThreadLocalRandom.current().nextDouble(UNKNOWN_RTT_MILLIS) + (stats == null ? 0 : stats.getPenalty());
+        return stats.getExpectedLatency();
+    }
+
+    /** Records that a server rejected a query because of its OPT record, so that later queries
+     * to the server are sent without EDNS.
+     */
+    void recordEdnsUnsupported(InetAddress server) {
+        ServerStats stats = getStats(server);
+        if (stats != null)
+            stats.ednsUnsupported = true;
+    }
+
+    /** Returns true unless a server is known not to support EDNS.
+     */
+    boolean supportsEdns(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null || !stats.ednsUnsupported;
+    }
+
+    /** Returns the time to wait for a response from a server before retransmitting a query.
+     *
+     * @param server          Address of the server.
+     * @param retransmissions Number of times the query was already sent to this server.
+     * @return Timeout in milliseconds.
+     */
+    long getRetransmissionTimeout(InetAddress server, int retransmissions) {
+        ServerStats stats = servers.get(server);
+        double timeout = stats == null || !stats.hasRtt() ? INITIAL_RTO_MILLIS
+                : Math.max(MIN_RTO_MILLIS, stats.getSmoothedRtt() + 4 * stats.getRttVariance());
+        timeout *= (1L << Math.min(retransmissions, 16)) * (1 + ThreadLocalRandom.current().nextDouble(RTO_JITTER));
+        return (long) Math.min(timeout, MAX_RTO_MILLIS);
+    }
+
+    /** Returns the statistics of a server, or null if it was never queried.
+     */
+    ServerStats get(InetAddress server) {
+        return servers.get(server);
+    }
+
+    /** Sorts server addresses by increasing expected latency.
+     *
+     * @param candidates Addresses of the servers, e.g., of all name servers of a referral.
+     * @return A new list with the same addresses, fastest first.
+     */
+    List<InetAddress> rank(Collection<InetAddress> candidates) {
+        Map<InetAddress, Double> latencies = new HashMap<>();
+        for (InetAddress candidate : candidates)
+            latencies.putIfAbsent(candidate, getExpectedLatency(candidate));
+        List<InetAddress> ranked = new ArrayList<>(latencies.keySet());
+        ranked.sort(Comparator.comparingDouble(latencies::get));
+        return ranked;
+    }
+
+    /** Perform a specific action for each server in the table.
+     */
+    void forEach(BiConsumer<InetAddress, ServerStats> consumer) {
+        servers.forEach(consumer);
+    }
+
+    void clear() {
+        servers.clear();
+    }
+
+    private ServerStats getStats(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        if (stats == null && servers.size() < MAX_SERVERS)
+            stats = servers.computeIfAbsent(server, key -> new ServerStats());
+        return stats;
+    }
+
+    /** Measurements for a single server. Updates are synchronized per server, since responses
+     * from the same server may be received by several lookups at the same time, except for the
+     * latency histogram, which is updated without locking.
+     */
+    static class ServerStats {
+
+        private double smoothedRtt = -1;
+        private double rttVariance;
+        private double penalty;
+        private long penaltyTime;
+        private long responses;
+        private long timeouts;
+        private long failures;
+        private volatile boolean ednsUnsupported;
+        private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+        synchronized void updateRtt(double rttMillis) {
+            responses++;
+            if (smoothedRtt < 0) {
+                smoothedRtt = rttMillis;
+                rttVariance = rttMillis / 2;
+            } else {
+                rttVariance = (1 - VARIANCE_GAIN) * rttVariance + VARIANCE_GAIN * Math.abs(smoothedRtt - rttMillis);
+                smoothedRtt = (1 - RTT_GAIN) * smoothedRtt + RTT_GAIN * rttMillis;
+            }
+        }
+
+        synchronized void addPenalty(double penaltyMillis, boolean timeout) {
+            if (timeout)
+                timeouts++;
+            else
+                failures++;
+            penalty = getPenalty() + penaltyMillis;
+            penaltyTime = System.currentTimeMillis();
+        }
+
+        /** Returns the current penalty, after applying the decay since it was last increased.
+         */
+        synchronized double getPenalty() {
+            if (penalty == 0)
+                return 0;
+            double elapsed = System.currentTimeMillis() - penaltyTime;
+            return penalty * Math.pow(0.5, elapsed / PENALTY_HALF_LIFE_MILLIS);
+        }
+
+        synchronized boolean hasRtt() {
+            return smoothedRtt >= 0;
+        }
+
+        synchronized double getExpectedLatency() {
+            return smoothedRtt + getPenalty();
+        }
+
+        /** Smoothed round-trip time in milliseconds, or -1 if the server never responded.
+         */
+        synchronized double getSmoothedRtt() {
+            return smoothedRtt;
+        }
+
+        synchronized double getRttVariance() {
+            return rttVariance;
+        }
+
+        synchronized long getResponses() {
+            return responses;
+        }
+
+        synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+        synchronized long getFailures() {
+            return failures;
+        }
+
+        /** Histogram of the round-trip times of the queries answered by the server.
+         */
+        LatencyHistogram getQueryLatency() {
+            return queryLatency;
+        }
+    }
+}
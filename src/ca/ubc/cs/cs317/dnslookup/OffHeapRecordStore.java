@@ -0,0 +1,717 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Storage of cached records outside of the Java heap, used by the {@link DNSCache} when the
+ * dnslookup.cache.offHeap system property is true. Records are kept in direct buffers rather than
+ * as objects, so that caches of tens of millions of records neither fill the heap nor lengthen
+ * garbage collection pauses. Records are only turned into ResourceRecord objects when they are
+ * returned to callers.
+ *
+ * All records of a node (query) are packed into a single block: a header with the record type,
+ * the negative result if any, and the hit count and last access time used for prefetching and
+ * eviction, followed by the case-folded host name in wire format and one entry per record
+ * (expiration time, original TTL, and result: an address, a domain name in wire format, or
+ * UTF-8 text). Blocks are allocated in segments of SEGMENT_SIZE bytes, with sizes rounded up to
+ * a power of two; freed blocks are kept in a free list per size and reused, but segments are
+ * only released when the store is cleared. A block grows by moving to the next size when a
+ * record is added, and at most MAX_BLOCK_SIZE bytes of records are kept per node.
+ *
+ * Blocks are found through an open addressing (linear probing) index, also kept in a direct
+ * buffer, which maps a hash of the node to the address of its block. The store is split into
+ * STRIPES independent stripes, each with its own segments, index and read-write lock, so that
+ * lookups of different nodes rarely contend.
+ *
+ * The number of nodes is bounded by the maximum size of the cache. When a stripe is full, the
+ * least recently accessed of EVICTION_SAMPLES nodes sampled from its index is evicted. Expired
+ * records are not removed by a priority queue, as in the on-heap cache, but by removeExpired,
+ * which the cache calls periodically to sweep every block.
+ */
+class OffHeapRecordStore {
+
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int SEGMENT_BITS = 20;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int MIN_BLOCK_BITS = 5;
+    private static final int MAX_BLOCK_BITS = 15;
+    private static final int MAX_BLOCK_SIZE = 1 << MAX_BLOCK_BITS;
+    private static final int INITIAL_INDEX_SIZE = 256;
+    private static final int MAX_INDEX_BITS = 23;
+    private static final int EVICTION_SAMPLES = 8;
+    private static final int SWEEP_BATCH = 4096;
+
+    // Index slots: occupied bit, 23 bits of the node hash, and 40 bits of block address
+    private static final long OCCUPIED = 1L << 63;
+    private static final int TAG_SHIFT = 40;
+    private static final int TAG_MASK = (1 << MAX_INDEX_BITS) - 1;
+    private static final long ADDRESS_MASK = (1L << TAG_SHIFT) - 1;
+
+    // Block header
+    private static final int SIZE_CLASS = 0;                // byte, log2 of the block size
+    private static final int NEGATIVE_KIND = 1;             // byte, NO_NEGATIVE, NXDOMAIN or NODATA
+    private static final int TYPE_CODE = 2;                 // short
+    private static final int HITS = 4;                      // int
+    private static final int NEGATIVE_EXPIRATION = 8;       // long, on the DNSClock
+    private static final int LAST_ACCESS = 16;              // int, in seconds on the DNSClock
+    private static final int RECORD_COUNT = 20;             // short
+    private static final int USED_LENGTH = 22;              // short, header, name and records
+    private static final int NAME_LENGTH = 24;              // byte
+    private static final int NAME = 25;
+    private static final int NEXT_FREE = 8;                 // long, in blocks of a free list
+
+    // Record entries
+    private static final int EXPIRATION = 0;                // long, on the DNSClock
+    private static final int ORIGINAL_TTL = 8;              // int
+    private static final int RESULT_KIND = 12;              // byte
+    private static final int RESULT_LENGTH = 13;            // short
+    private static final int RESULT = 15;
+
+    private static final int NO_NEGATIVE = 0;
+    private static final int NEGATIVE_NXDOMAIN = 1;
+    private static final int NEGATIVE_NODATA = 2;
+    private static final int ADDRESS_RESULT = 1;
+    private static final int NAME_RESULT = 2;
+    private static final int TEXT_RESULT = 3;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder evictions = new LongAdder();
+    private volatile int maximumSize;
+
+    /** Consumer of the nodes of the store, visited by forEach.
+     */
+    interface NodeConsumer {
+        /**
+         * @param node     Node (query) of the entry.
+         * @param records  Records of the node, including expired ones.
+         * @param negative Negative result of the node, which may have expired, or null.
+         */
+        void accept(DNSNode node, List<ResourceRecord> records, ResourceRecord negative);
+    }
+
+    OffHeapRecordStore(int maximumSize) {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        setMaximumSize(maximumSize);
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        this.maximumSize = maximumSize;
+    }
+
+    /** Returns the number of nodes evicted because the store was full.
+     */
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** Returns the number of nodes currently stored.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.count;
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the number of bytes of direct memory allocated for segments and indexes.
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                bytes += (long) stripe.segments.size() * SEGMENT_SIZE + stripe.index.capacity();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /** Adds a record to its node, creating the node if needed, and removes the negative result
+     * of the node. If the node already has an equivalent record, the existing record keeps the
+     * later of the two expiration times.
+     *
+     * @param record Record to add.
+     * @return true if the record was added, or false if it replaced an equivalent record or
+     * could not be stored.
+     */
+    boolean addResult(ResourceRecord record) {
+        DNSName name = DNSNameTable.getInstance().intern(record.getHostName());
+        int typeCode = record.getType().getCode();
+        int hash = hash(name, typeCode);
+        int kind = resultKind(record);
+        byte[] result = encodeResult(record, kind);
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            return stripe.addResult(name.getWireEncoding(), typeCode, hash, record.getExpirationTime(),
+                    (int) Math.min(Integer.MAX_VALUE, record.getOriginalTTL()), kind, result);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /** Sets the negative result of a node, creating the node if needed, unless the node already
+     * has a negative result that expires later.
+     *
+     * @param negative Record whose text result is DNSCache.NXDOMAIN or DNSCache.NODATA.
+     * @return true if the node had no negative result.
+     */
+    boolean addNegativeResult(ResourceRecord negative) {
+        DNSName name = DNSNameTable.getInstance().intern(negative.getHostName());
+        int typeCode = negative.getType().getCode();
+        int hash = hash(name, typeCode);
+        int kind = negative.getTextResult().equals(DNSCache.NXDOMAIN) ? NEGATIVE_NXDOMAIN : NEGATIVE_NODATA;
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            return stripe.addNegativeResult(name.getWireEncoding(), typeCode, hash, negative.getExpirationTime(), kind);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /** Reads the records of a node that are still valid at some time.
+     *
+     * @param node       Node to read.
+     * @param validAfter Records expiring at or before this time, on the DNSClock, are skipped.
+     * @param results    Collection the records are added to.
+     * @param countHit   Whether to count the read as a hit of the node, for prefetching and
+     *                   eviction.
+     * @return The hit count of the node, or -1 if the node is not stored.
+     */
+    int read(DNSNode node, long validAfter, Collection<ResourceRecord> results, boolean countHit) {
+        DNSName name = DNSNameTable.getInstance().intern(node.getHostName());
+        int hash = hash(name, node.getType().getCode());
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.read(name.getWireEncoding(), node, hash, validAfter, results, countHit);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the negative result of a node, which may have expired, or null if it has none.
+     */
+    ResourceRecord getNegativeResult(DNSNode node) {
+        DNSName name = DNSNameTable.getInstance().intern(node.getHostName());
+        int hash = hash(name, node.getType().getCode());
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.readLock().lock();
+        try {
+            int slot = stripe.find(name.getWireEncoding(), node.getType().getCode(), hash);
+            return slot < 0 ? null : stripe.readNegativeResult(stripe.addressAt(slot), node);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /** Resets the hit count of a node, e.g., once it has been refreshed.
+     */
+    void resetHits(DNSNode node) {
+        DNSName name = DNSNameTable.getInstance().intern(node.getHostName());
+        int hash = hash(name, node.getType().getCode());
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.readLock().lock();
+        try {
+            int slot = stripe.find(name.getWireEncoding(), node.getType().getCode(), hash);
+            if (slot >= 0) {
+                long address = stripe.addressAt(slot);
+                stripe.segment(address).putInt(offset(address) + HITS, 0);
+            }
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /** Removes every record and negative result that expired at or before a time, and every
+     * node left without any. Stripes are swept SWEEP_BATCH index slots at a time, so that
+     * lookups are not blocked for the whole sweep.
+     *
+     * @param cutoff Time on the DNSClock.
+     * @return The number of records and negative results removed.
+     */
+    long removeExpired(long cutoff) {
+        long removed = 0;
+        for (Stripe stripe : stripes) {
+            for (int start = 0; ; start += SWEEP_BATCH) {
+                stripe.lock.writeLock().lock();
+                try {
+                    if (start > stripe.mask)
+                        break;
+                    removed += stripe.removeExpired(start, Math.min(start + SWEEP_BATCH, stripe.mask + 1), cutoff);
+                } finally {
+                    stripe.lock.writeLock().unlock();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /** Visits every node of the store. The consumer is called while a stripe is locked, so it
+     * should not use the store.
+     */
+    void forEach(NodeConsumer consumer) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                stripe.forEach(consumer);
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /** Removes every node, and releases the memory of the store.
+     */
+    void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Stripe stripeOf(int hash) {
+        return stripes[hash >>> (32 - STRIPE_BITS)];
+    }
+
+    private static int hash(DNSName name, int typeCode) {
+        int hash = (31 * name.getHash() + typeCode) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int offset(long address) {
+        return (int) (address & (SEGMENT_SIZE - 1));
+    }
+
+    private static int resultKind(ResourceRecord record) {
+        if (record.getInetResult() != null)
+            return ADDRESS_RESULT;
+        if (record.getType() == RecordType.NS || record.getType() == RecordType.CNAME)
+            return NAME_RESULT;
+        return TEXT_RESULT;
+    }
+
+    private static byte[] encodeResult(ResourceRecord record, int kind) {
+        switch (kind) {
+            case ADDRESS_RESULT:
+                return record.getInetResult().getAddress();
+            case NAME_RESULT:
+                return DNSNameTable.getInstance().intern(record.getTextResult()).getWireEncoding();
+            default:
+                return record.getTextResult().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static boolean regionEquals(ByteBuffer data, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            if (data.get(offset + i) != bytes[i])
+                return false;
+        return true;
+    }
+
+    /** A part of the store: block segments, free lists and index. Methods must be called while
+     * holding the lock, for writing unless stated otherwise.
+     */
+    private final class Stripe {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<ByteBuffer> segments = new ArrayList<>();
+        private final long[] freeLists = new long[MAX_BLOCK_BITS + 1];    // address + 1 of the first free block
+        private int bumpOffset = SEGMENT_SIZE;
+        private ByteBuffer index = allocateIndex(INITIAL_INDEX_SIZE);
+        private int mask = INITIAL_INDEX_SIZE - 1;
+        private int count;
+
+        private ByteBuffer segment(long address) {
+            return segments.get((int) (address >>> SEGMENT_BITS));
+        }
+
+        private long slotAt(int slot) {
+            return index.getLong(slot << 3);
+        }
+
+        private long addressAt(int slot) {
+            return slotAt(slot) & ADDRESS_MASK;
+        }
+
+        /** Returns the index slot of a node, or -1 if it is not stored. Only requires the read lock.
+         */
+        private int find(byte[] name, int typeCode, int hash) {
+            int tag = hash & TAG_MASK;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long entry = slotAt(slot);
+                if (entry == 0)
+                    return -1;
+                if ((int) (entry >>> TAG_SHIFT & TAG_MASK) == tag && matches(entry & ADDRESS_MASK, name, typeCode))
+                    return slot;
+            }
+        }
+
+        private boolean matches(long address, byte[] name, int typeCode) {
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            return (segment.getShort(base + TYPE_CODE) & 0xFFFF) == typeCode
+                    && (segment.get(base + NAME_LENGTH) & 0xFF) == name.length
+                    && regionEquals(segment, base + NAME, name);
+        }
+
+        private boolean addResult(byte[] name, int typeCode, int hash, long expiration, int originalTTL,
+                                  int kind, byte[] result) {
+            int recordLength = RESULT + result.length;
+            int slot = find(name, typeCode, hash);
+            if (slot < 0) {
+                if (NAME + name.length + recordLength > MAX_BLOCK_SIZE)
+                    return false;
+                slot = insert(name, typeCode, hash, NAME + name.length + recordLength);
+            }
+            long address = addressAt(slot);
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            segment.put(base + NEGATIVE_KIND, (byte) NO_NEGATIVE);
+
+            int records = segment.getShort(base + RECORD_COUNT) & 0xFFFF;
+            int used = segment.getShort(base + USED_LENGTH) & 0xFFFF;
+            int position = base + NAME + name.length;
+            for (int i = 0; i < records; i++) {
+                int length = segment.getShort(position + RESULT_LENGTH) & 0xFFFF;
+                if (segment.get(position + RESULT_KIND) == kind && length == result.length
+                        && regionEquals(segment, position + RESULT, result)) {
+                    if (segment.getLong(position + EXPIRATION) < expiration) {
+                        segment.putLong(position + EXPIRATION, expiration);
+                        segment.putInt(position + ORIGINAL_TTL, originalTTL);
+                    }
+                    return false;
+                }
+                position += RESULT + length;
+            }
+
+            if (used + recordLength > 1 << segment.get(base + SIZE_CLASS)) {
+                if (used + recordLength > MAX_BLOCK_SIZE)
+                    return false;
+                long moved = allocate(used + recordLength);
+                ByteBuffer source = segment.duplicate();
+                source.limit(base + used).position(base + SIZE_CLASS + 1);
+                ByteBuffer target = segment(moved).duplicate();
+                target.position(offset(moved) + SIZE_CLASS + 1);
+                target.put(source);
+                free(address);
+                index.putLong(slot << 3, slotAt(slot) & ~ADDRESS_MASK | moved);
+                address = moved;
+                segment = segment(address);
+                base = offset(address);
+            }
+
+            position = base + used;
+            segment.putLong(position + EXPIRATION, expiration);
+            segment.putInt(position + ORIGINAL_TTL, originalTTL);
+            segment.put(position + RESULT_KIND, (byte) kind);
+            segment.putShort(position + RESULT_LENGTH, (short) result.length);
+            for (int i = 0; i < result.length; i++)
+                segment.put(position + RESULT + i, result[i]);
+            segment.putShort(base + RECORD_COUNT, (short) (records + 1));
+            segment.putShort(base + USED_LENGTH, (short) (used + recordLength));
+            return true;
+        }
+
+        private boolean addNegativeResult(byte[] name, int typeCode, int hash, long expiration, int kind) {
+            int slot = find(name, typeCode, hash);
+            if (slot < 0)
+                slot = insert(name, typeCode, hash, NAME + name.length);
+            long address = addressAt(slot);
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            boolean hadNegative = segment.get(base + NEGATIVE_KIND) != NO_NEGATIVE;
+            if (!hadNegative || segment.getLong(base + NEGATIVE_EXPIRATION) < expiration) {
+                segment.put(base + NEGATIVE_KIND, (byte) kind);
+                segment.putLong(base + NEGATIVE_EXPIRATION, expiration);
+            }
+            return !hadNegative;
+        }
+
+        /** Reads the records of a node. Only requires the read lock: the hit count and last
+         * access time are updated without exclusive access, so concurrent reads may lose an
+         * update, which only delays a prefetch or makes eviction slightly less accurate.
+         */
+        private int read(byte[] name, DNSNode node, int hash, long validAfter,
+                         Collection<ResourceRecord> results, boolean countHit) {
+            int slot = find(name, node.getType().getCode(), hash);
+            if (slot < 0)
+                return -1;
+            long address = addressAt(slot);
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            int records = segment.getShort(base + RECORD_COUNT) & 0xFFFF;
+            int position = base + NAME + name.length;
+            for (int i = 0; i < records; i++) {
+                if (segment.getLong(position + EXPIRATION) > validAfter)
+                    results.add(readRecord(segment, position, node));
+                position += RESULT + (segment.getShort(position + RESULT_LENGTH) & 0xFFFF);
+            }
+            if (!countHit)
+                return segment.getInt(base + HITS);
+            int hits = segment.getInt(base + HITS) + 1;
+            segment.putInt(base + HITS, hits);
+            segment.putInt(base + LAST_ACCESS, (int) (DNSClock.millis() / 1000));
+            return hits;
+        }
+
+        private ResourceRecord readRecord(ByteBuffer segment, int position, DNSNode node) {
+            int length = segment.getShort(position + RESULT_LENGTH) & 0xFFFF;
+            int result = position + RESULT;
+            String textResult = null;
+            InetAddress inetResult = null;
+            switch (segment.get(position + RESULT_KIND)) {
+                case ADDRESS_RESULT:
+                    byte[] address = new byte[length];
+                    for (int i = 0; i < length; i++)
+                        address[i] = segment.get(result + i);
+                    try {
+                        inetResult = InetAddress.getByAddress(address);
+                    } catch (UnknownHostException e) {
+                        throw new IllegalStateException("Invalid address in off-heap cache", e);
+                    }
+                    break;
+                case NAME_RESULT:
+                    textResult = DNSNameTable.getInstance().intern(segment, result).getName();
+                    break;
+                default:
+                    byte[] text = new byte[length];
+                    for (int i = 0; i < length; i++)
+                        text[i] = segment.get(result + i);
+                    textResult = new String(text, StandardCharsets.UTF_8);
+            }
+            return ResourceRecord.restore(node, segment.getLong(position + EXPIRATION),
+                    segment.getInt(position + ORIGINAL_TTL), textResult, inetResult);
+        }
+
+        private ResourceRecord readNegativeResult(long address, DNSNode node) {
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            int kind = segment.get(base + NEGATIVE_KIND);
+            if (kind == NO_NEGATIVE)
+                return null;
+            long expiration = segment.getLong(base + NEGATIVE_EXPIRATION);
+            return ResourceRecord.restore(node, expiration, Math.max(0, (expiration - DNSClock.millis()) / 1000),
+                    kind == NEGATIVE_NXDOMAIN ? DNSCache.NXDOMAIN : DNSCache.NODATA, null);
+        }
+
+        /** Allocates and initializes a block for a new node, and adds it to the index, evicting
+         * another node first if the stripe is full.
+         *
+         * @return The index slot of the node.
+         */
+        private int insert(byte[] name, int typeCode, int hash, int length) {
+            int limit = Math.min(Math.max(1, maximumSize / STRIPES), 1 << (MAX_INDEX_BITS - 1));
+            while (count >= limit)
+                evict();
+            if ((count + 1) * 2 > mask + 1 && mask + 1 < 1 << MAX_INDEX_BITS)
+                resize((mask + 1) * 2);
+
+            long address = allocate(length);
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            segment.put(base + NEGATIVE_KIND, (byte) NO_NEGATIVE);
+            segment.putShort(base + TYPE_CODE, (short) typeCode);
+            segment.putInt(base + HITS, 0);
+            segment.putLong(base + NEGATIVE_EXPIRATION, 0);
+            segment.putInt(base + LAST_ACCESS, (int) (DNSClock.millis() / 1000));
+            segment.putShort(base + RECORD_COUNT, (short) 0);
+            segment.putShort(base + USED_LENGTH, (short) (NAME + name.length));
+            segment.put(base + NAME_LENGTH, (byte) name.length);
+            for (int i = 0; i < name.length; i++)
+                segment.put(base + NAME + i, name[i]);
+
+            int slot = hash & mask;
+            while (slotAt(slot) != 0)
+                slot = (slot + 1) & mask;
+            index.putLong(slot << 3, OCCUPIED | (long) (hash & TAG_MASK) << TAG_SHIFT | address);
+            count++;
+            return slot;
+        }
+
+        /** Evicts the least recently accessed of a few nodes, found from a random index slot.
+         */
+        private void evict() {
+            int victim = -1;
+            int victimAccess = Integer.MAX_VALUE;
+            int sampled = 0;
+            int slot = ThreadLocalRandom.current().nextInt(mask + 1);
+            for (int i = 0; i <= mask && sampled < EVICTION_SAMPLES; i++, slot = (slot + 1) & mask) {
+                long entry = slotAt(slot);
+                if (entry == 0)
+                    continue;
+                sampled++;
+                long address = entry & ADDRESS_MASK;
+                int lastAccess = segment(address).getInt(offset(address) + LAST_ACCESS);
+                if (lastAccess < victimAccess) {
+                    victim = slot;
+                    victimAccess = lastAccess;
+                }
+            }
+            remove(victim);
+            evictions.increment();
+        }
+
+        /** Removes the node at an index slot and frees its block. Following nodes are moved back
+         * into the hole when it is on their probe sequence, so the index needs no tombstones.
+         */
+        private void remove(int slot) {
+            free(addressAt(slot));
+            count--;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+                long entry = slotAt(next);
+                if (entry == 0)
+                    break;
+                int home = (int) (entry >>> TAG_SHIFT) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    index.putLong(hole << 3, entry);
+                    hole = next;
+                }
+            }
+            index.putLong(hole << 3, 0);
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer oldIndex = index;
+            int oldCapacity = mask + 1;
+            index = allocateIndex(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < oldCapacity; i++) {
+                long entry = oldIndex.getLong(i << 3);
+                if (entry == 0)
+                    continue;
+                int slot = (int) (entry >>> TAG_SHIFT) & mask;
+                while (slotAt(slot) != 0)
+                    slot = (slot + 1) & mask;
+                index.putLong(slot << 3, entry);
+            }
+        }
+
+        private long removeExpired(int start, int end, long cutoff) {
+            long removed = 0;
+            for (int slot = start; slot < end; slot++) {
+                long entry = slotAt(slot);
+                if (entry == 0)
+                    continue;
+                long address = entry & ADDRESS_MASK;
+                ByteBuffer segment = segment(address);
+                int base = offset(address);
+                if (segment.get(base + NEGATIVE_KIND) != NO_NEGATIVE
+                        && segment.getLong(base + NEGATIVE_EXPIRATION) <= cutoff) {
+                    segment.put(base + NEGATIVE_KIND, (byte) NO_NEGATIVE);
+                    removed++;
+                }
+
+                // Compact the records that are kept towards the start of the record area
+                int records = segment.getShort(base + RECORD_COUNT) & 0xFFFF;
+                int kept = 0;
+                int position = base + NAME + (segment.get(base + NAME_LENGTH) & 0xFF);
+                int target = position;
+                for (int i = 0; i < records; i++) {
+                    int length = RESULT + (segment.getShort(position + RESULT_LENGTH) & 0xFFFF);
+                    if (segment.getLong(position + EXPIRATION) > cutoff) {
+                        for (int j = 0; j < length && target != position; j++)
+                            segment.put(target + j, segment.get(position + j));
+                        target += length;
+                        kept++;
+                    } else
+                        removed++;
+                    position += length;
+                }
+                segment.putShort(base + RECORD_COUNT, (short) kept);
+                segment.putShort(base + USED_LENGTH, (short) (target - base));
+
+                if (kept == 0 && segment.get(base + NEGATIVE_KIND) == NO_NEGATIVE) {
+                    remove(slot);
+                    slot--;                                 // another node may have moved into this slot
+                }
+            }
+            return removed;
+        }
+
+        private void forEach(NodeConsumer consumer) {
+            for (int slot = 0; slot <= mask; slot++) {
+                long entry = slotAt(slot);
+                if (entry == 0)
+                    continue;
+                long address = entry & ADDRESS_MASK;
+                ByteBuffer segment = segment(address);
+                int base = offset(address);
+                RecordType type = RecordType.getByCode(segment.getShort(base + TYPE_CODE) & 0xFFFF);
+                DNSNode node = DNSNameTable.getInstance().intern(segment, base + NAME).getNode(type);
+                List<ResourceRecord> records = new ArrayList<>();
+                read(DNSNameTable.getInstance().intern(node.getHostName()).getWireEncoding(), node,
+                        (int) (entry >>> TAG_SHIFT), Long.MIN_VALUE, records, false);
+                consumer.accept(node, records, readNegativeResult(address, node));
+            }
+        }
+
+        private void clear() {
+            segments.clear();
+            java.util.Arrays.fill(freeLists, 0);
+            bumpOffset = SEGMENT_SIZE;
+            index = allocateIndex(INITIAL_INDEX_SIZE);
+            mask = INITIAL_INDEX_SIZE - 1;
+            count = 0;
+        }
+
+        private long allocate(int length) {
+            int sizeClass = Math.max(MIN_BLOCK_BITS, 32 - Integer.numberOfLeadingZeros(length - 1));
+            long address;
+            if (freeLists[sizeClass] != 0) {
+                address = freeLists[sizeClass] - 1;
+                freeLists[sizeClass] = segment(address).getLong(offset(address) + NEXT_FREE);
+            } else {
+                if (bumpOffset + (1 << sizeClass) > SEGMENT_SIZE) {
+                    segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE).order(ByteOrder.nativeOrder()));
+                    bumpOffset = 0;
+                }
+                address = (long) (segments.size() - 1) << SEGMENT_BITS | bumpOffset;
+                bumpOffset += 1 << sizeClass;
+            }
+            segment(address).put(offset(address) + SIZE_CLASS, (byte) sizeClass);
+            return address;
+        }
+
+        private void free(long address) {
+            ByteBuffer segment = segment(address);
+            int base = offset(address);
+            segment.putLong(base + NEXT_FREE, freeLists[segment.get(base + SIZE_CLASS)]);
+            freeLists[segment.get(base + SIZE_CLASS)] = address + 1;
+        }
+    }
+
+    private static ByteBuffer allocateIndex(int capacity) {
+        return ByteBuffer.allocateDirect(capacity << 3).order(ByteOrder.nativeOrder());
+    }
+}
@@ -2,32 +2,87 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Expiration times are read from the {@link DNSClock}, so checking whether a record is still
+ * valid, or computing its remaining TTL, only reads two fields and never allocates.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private long originalTTL;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this(new DNSNode(hostName, type), ttl, result);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(new DNSNode(hostName, type), ttl, result);
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, String result) {
+        this.node = node;
+        this.expirationTime = DNSClock.millis() + (ttl * 1000);
+        this.originalTTL = ttl;
         this.textResult = result;
         this.inetResult = null;
     }
 
-    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
+    public ResourceRecord(DNSNode node, long ttl, InetAddress result) {
+        this(node, ttl, result.getHostAddress());
         this.inetResult = result;
     }
 
+    /** Creates a record that expires at a specific time rather than after a TTL, e.g., when a
+     * record is restored from a cache snapshot.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null if it has no address.
+     */
+    static ResourceRecord expiringAt(DNSNode node, long expirationTime, String textResult, InetAddress inetResult) {
+        ResourceRecord record = inetResult == null ? new ResourceRecord(node, 0, textResult)
+                : new ResourceRecord(node, 0, inetResult);
+        record.expirationTime = DNSClock.fromWallClock(expirationTime);
+        record.originalTTL = Math.max(0, record.getTTL());
+        return record;
+    }
+
+    /** Recreates a record kept outside of the heap by an {@link OffHeapRecordStore}, with the
+     * expiration time and original TTL it was stored with.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, on the {@link DNSClock}.
+     * @param originalTTL    TTL the record had when it was created, in seconds.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null if it has no address.
+     */
+    static ResourceRecord restore(DNSNode node, long expirationTime, long originalTTL, String textResult,
+                                  InetAddress inetResult) {
+        ResourceRecord record = inetResult == null ? new ResourceRecord(node, 0, textResult)
+                : new ResourceRecord(node, 0, inetResult);
+        record.expirationTime = expirationTime;
+        record.originalTTL = originalTTL;
+        return record;
+    }
+
+    /** Creates a copy of this record with a different TTL, e.g., to hand out an expired record
+     * for a short time while it is being refreshed.
+     *
+     * @param ttl TTL of the copy, in seconds from now.
+     */
+    ResourceRecord withTTL(long ttl) {
+        return inetResult == null ? new ResourceRecord(node, ttl, textResult) : new ResourceRecord(node, ttl, inetResult);
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +103,14 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - DNSClock.millis() + 999) / 1000;
+    }
+
+    /** The TTL this record had when it was created, in seconds. For records restored from a
+     * cache snapshot, this is the TTL they had left when they were restored.
+     */
+    public long getOriginalTTL() {
+        return originalTTL;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +120,23 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return isStillValid(DNSClock.millis());
+    }
+
+    /** Returns true if this record has not expired yet at the specified time. This allows
+     * callers checking many records at once to read the clock only once.
+     *
+     * @param now Current time, as given by {@link DNSClock#millis()}.
+     * @return true if this record has not expired yet, and false otherwise.
+     */
+    boolean isStillValid(long now) {
+        return expirationTime > now;
+    }
+
+    /** Returns the time at which this record expires, on the {@link DNSClock}.
+     */
+    long getExpirationTime() {
+        return expirationTime;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,7 +148,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
     }
 
     public String getTextResult() {
@@ -0,0 +1,136 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Flyweight view of a single resource record inside a DNS response. The view only keeps the
+ * offset of the record in the response buffer; the name, type, TTL and data of the record are
+ * read from the buffer only when they are requested. The same view object may be moved to
+ * different records of the same response.
+ */
+public class ResourceRecordView {
+
+    private final ByteBuffer data;
+    private int offset;
+    private int typeOffset;
+
+    ResourceRecordView(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /** Moves this view to the record starting at a specific offset in the response.
+     *
+     * @param offset Offset of the owner name of the record.
+     * @return This view.
+     */
+    ResourceRecordView moveTo(int offset) {
+        this.offset = offset;
+        this.typeOffset = DNSWireFormat.skipName(data, offset);
+        return this;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getHostName() {
+        return DNSWireFormat.decodeName(data, offset);
+    }
+
+    /** Returns the shared node for the name and type of this record. If the name was already
+     * seen, no object is allocated.
+     */
+    public DNSNode getNode() {
+        return DNSNameTable.getInstance().intern(data, offset).getNode(getType());
+    }
+
+    public boolean hostNameEquals(String hostName) {
+        return DNSWireFormat.nameEqualsIgnoreCase(data, offset, hostName);
+    }
+
+    public int getTypeCode() {
+        return DNSWireFormat.readUnsignedShort(data, typeOffset);
+    }
+
+    public RecordType getType() {
+        return RecordType.getByCode(getTypeCode());
+    }
+
+    public int getRecordClass() {
+        return DNSWireFormat.readUnsignedShort(data, typeOffset + 2);
+    }
+
+    public long getTTL() {
+        return DNSWireFormat.readUnsignedInt(data, typeOffset + 4);
+    }
+
+    public int getRDataLength() {
+        return DNSWireFormat.readUnsignedShort(data, typeOffset + 8);
+    }
+
+    public int getRDataOffset() {
+        return typeOffset + 10;
+    }
+
+    /** Returns the offset of the first byte following this record, i.e., of the next record.
+     */
+    public int getEndOffset() {
+        return getRDataOffset() + getRDataLength();
+    }
+
+    /** Returns the domain name contained in the data of this record, e.g., the target of an
+     * NS or CNAME record.
+     */
+    public String getRDataName() {
+        return DNSNameTable.getInstance().intern(data, getRDataOffset()).getName();
+    }
+
+    /** Returns the MINIMUM field of an SOA record, i.e., the TTL of negative results for its
+     * zone. The field follows the two names and four other 32-bit fields of the record data.
+     */
+    public long getSOAMinimum() {
+        int offset = DNSWireFormat.skipName(data, DNSWireFormat.skipName(data, getRDataOffset()));
+        return DNSWireFormat.readUnsignedInt(data, offset + 16);
+    }
+
+    /** Returns the data of an SOA record in master file format: the name of the primary name
+     * server and the mailbox of the person responsible for the zone, followed by the serial,
+     * refresh, retry, expire and minimum fields.
+     */
+    public String getSOAData() {
+        int offset = getRDataOffset();
+        StringBuilder text = new StringBuilder(DNSNameTable.getInstance().intern(data, offset).getName());
+        offset = DNSWireFormat.skipName(data, offset);
+        text.append(' ').append(DNSNameTable.getInstance().intern(data, offset).getName());
+        offset = DNSWireFormat.skipName(data, offset);
+        for (int i = 0; i < 5; i++)
+            text.append(' ').append(DNSWireFormat.readUnsignedInt(data, offset + 4 * i));
+        return text.toString();
+    }
+
+    /** Creates a resource record with the contents of this view. The address of A and AAAA
+     * records, and the name of NS and CNAME records, are decoded. Other record types are created
+     * with a placeholder result, since their data is not supported by this application. Names
+     * are taken from the shared name table, and are therefore case-folded.
+     *
+     * @return A new resource record.
+     * @throws UnknownHostException If the data of an A or AAAA record has an invalid length.
+     */
+    public ResourceRecord toResourceRecord() throws UnknownHostException {
+        RecordType type = getType();
+        switch (type) {
+            case A:
+            case AAAA:
+                byte[] address = new byte[getRDataLength()];
+                for (int i = 0; i < address.length; i++)
+                    address[i] = data.get(getRDataOffset() + i);
+                return new ResourceRecord(getNode(), getTTL(), InetAddress.getByAddress(address));
+            case NS:
+            case CNAME:
+                return new ResourceRecord(getNode(), getTTL(), getRDataName());
+            default:
+                return new ResourceRecord(getNode(), getTTL(), "----");
+        }
+    }
+}
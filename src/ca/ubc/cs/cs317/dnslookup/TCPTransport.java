@@ -0,0 +1,216 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** TCP transport for DNS queries, used when a response does not fit in a UDP datagram. Messages
+ * are framed with a 2-byte length prefix (RFC 1035, section 4.2.2).
+ *
+ * Connections are pooled: at most one connection is kept per server, and it is reused by later
+ * queries to the same server instead of opening a new connection for each query. Queries are
+ * pipelined on the connection (RFC 7766): a query is written as soon as it is made, without
+ * waiting for the responses of earlier queries, and each connection has a reader thread that
+ * matches responses to queries by transaction ID, in whatever order the server sends them.
+ * Connections without outstanding queries are closed after IDLE_TIMEOUT_MILLIS.
+ */
+class TCPTransport implements Closeable {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+
+    private final Map<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DNS-tcp-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    TCPTransport() {
+        timer.scheduleWithFixedDelay(this::closeIdleConnections,
+                IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends a query over the pooled connection to its server, opening the connection if needed,
+     * and returns a future that is completed with the matching response. The future fails with
+     * a SocketTimeoutException if no response is received within the timeout (including the time
+     * needed to connect), or with an IOException if the connection fails.
+     *
+     * @param query         Query packet, including the destination address and port.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the response packet.
+     */
+    CompletableFuture<DatagramPacket> query(DatagramPacket query, long timeoutMillis) {
+        InetSocketAddress server = (InetSocketAddress) query.getSocketAddress();
+        int transactionID = ((query.getData()[query.getOffset()] & 0xFF) << 8)
+                | (query.getData()[query.getOffset() + 1] & 0xFF);
+        CompletableFuture<DatagramPacket> response = new CompletableFuture<>();
+
+        // A pooled connection may have been closed by the server since it was last used, so a
+        // failed write is retried once on a new connection
+        for (int attempt = 0; attempt < 2 && !response.isDone(); attempt++) {
+            Connection connection;
+            try {
+                connection = getConnection(server, timeoutMillis);
+            } catch (IOException e) {
+                response.completeExceptionally(e instanceof SocketTimeoutException ? e
+                        : new IOException("Could not connect to " + server.getAddress().getHostAddress(), e));
+                return response;
+            }
+            if (connection.pendingQueries.putIfAbsent(transactionID, response) != null) {
+                response.completeExceptionally(new IOException("Transaction ID " + transactionID + " is already in use"));
+                return response;
+            }
+            try {
+                connection.send(query);
+                break;
+            } catch (IOException e) {
+                connection.pendingQueries.remove(transactionID, response);
+                connection.fail(e);
+                if (attempt == 1)
+                    response.completeExceptionally(e);
+            }
+        }
+
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            Connection connection = connections.get(server);
+            if (connection != null)
+                connection.pendingQueries.remove(transactionID, response);
+            response.completeExceptionally(new SocketTimeoutException(
+                    "No TCP response from " + server.getAddress().getHostAddress()));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        response.whenComplete((packet, error) -> timeout.cancel(false));
+        return response;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        for (Connection connection : new ArrayList<>(connections.values()))
+            connection.fail(new ClosedChannelException());
+    }
+
+    /** Returns the pooled connection to a server, opening a new one if there is none. Connecting
+     * is done outside of the pool's locks, so that a slow server never delays queries to other
+     * servers; if several threads connect to the same server at once, only the first connection
+     * installed is kept, and the others are closed.
+     */
+    private Connection getConnection(InetSocketAddress server, long timeoutMillis) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        Connection connection = connections.get(server);
+        if (connection != null && connection.channel.isOpen())
+            return connection;
+
+        Connection opened = new Connection(server, timeoutMillis);
+        while (true) {
+            connection = connections.putIfAbsent(server, opened);
+            if (connection == null)
+                return opened;
+            if (connection.channel.isOpen()) {
+                opened.fail(new ClosedChannelException());
+                return connection;
+            }
+            connections.remove(server, connection);
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = DNSClock.millis();
+        for (Connection connection : connections.values())
+            if (connection.pendingQueries.isEmpty() && now - connection.lastUsed > IDLE_TIMEOUT_MILLIS)
+                connection.fail(new ClosedChannelException());
+    }
+
+    /** A connection to a single server, with the queries waiting for a response on it. Writes
+     * are synchronized so that pipelined queries are not interleaved, while the reader thread
+     * reads responses independently.
+     */
+    private class Connection {
+        private final InetSocketAddress server;
+        private final SocketChannel channel;
+        private final Map<Integer, CompletableFuture<DatagramPacket>> pendingQueries = new ConcurrentHashMap<>();
+        private volatile long lastUsed = DNSClock.millis();
+
+        private Connection(InetSocketAddress server, long connectTimeoutMillis) throws IOException {
+            this.server = server;
+            this.channel = SocketChannel.open();
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                channel.socket().connect(server, (int) Math.max(1, Math.min(Integer.MAX_VALUE, connectTimeoutMillis)));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::readForever, "DNS-tcp-" + server.getAddress().getHostAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private synchronized void send(DatagramPacket query) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(2 + query.getLength());
+            frame.putShort((short) query.getLength());
+            frame.put(query.getData(), query.getOffset(), query.getLength());
+            frame.flip();
+            while (frame.hasRemaining())
+                channel.write(frame);
+            lastUsed = DNSClock.millis();
+        }
+
+        private void readForever() {
+            ByteBuffer lengthPrefix = ByteBuffer.allocate(2);
+            try {
+                while (true) {
+                    lengthPrefix.clear();
+                    readFully(lengthPrefix);
+                    int length = lengthPrefix.getShort(0) & MAX_MESSAGE_LENGTH;
+                    ByteBuffer message = ByteBuffer.allocate(length);
+                    readFully(message);
+                    lastUsed = DNSClock.millis();
+                    if (length < 2)
+                        continue;
+
+                    int transactionID = ((message.get(0) & 0xFF) << 8) | (message.get(1) & 0xFF);
+                    CompletableFuture<DatagramPacket> response = pendingQueries.remove(transactionID);
+                    if (response != null)
+                        response.complete(new DatagramPacket(message.array(), length, server));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Connection closed by " + server.getAddress().getHostAddress());
+        }
+
+        /** Closes the connection, removes it from the pool, and fails every query still waiting
+         * for a response on it.
+         */
+        private void fail(IOException cause) {
+            connections.remove(server, this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already failing
+            }
+            for (Integer transactionID : pendingQueries.keySet()) {
+                CompletableFuture<DatagramPacket> response = pendingQueries.remove(transactionID);
+                if (response != null)
+                    response.completeExceptionally(cause);
+            }
+        }
+    }
+}
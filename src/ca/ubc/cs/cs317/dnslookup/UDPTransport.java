@@ -0,0 +1,218 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Asynchronous UDP transport for DNS queries. All queries are sent through a single
+ * non-blocking datagram channel, so many queries may be outstanding at the same time. A single
+ * selector thread receives every response and routes it to the query it answers, based on the
+ * transaction ID and the address and port of the server that sent it. The same thread also
+ * fails queries whose timeout elapsed, so no thread is blocked per outstanding query. The
+ * receive buffer is as large as the UDP payload size advertised in queries.
+ */
+class UDPTransport implements Closeable {
+
+    private static final int RECEIVE_BUFFER_SIZE = DNSQueryGenerator.getUdpPayloadSize();
+    private static final long MAX_SELECT_MILLIS = 100;
+    private static final int SEND_ATTEMPTS = 3;
+    private static final long SEND_RETRY_MICROS = 200;
+    // Deadlines are read from System.nanoTime, so that stepping the wall clock does not expire or
+    // extend outstanding queries; they are only compared relative to this origin
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Map<PendingKey, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<PendingQuery> deadlines =
+            new PriorityBlockingQueue<>(16, Comparator.comparingLong(pending -> pending.deadline - ORIGIN_NANOS));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final Thread selectorThread;
+
+    /** Opens the datagram channel on an ephemeral port and starts the selector thread.
+     *
+     * @throws IOException If the channel could not be opened.
+     */
+    UDPTransport() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(null);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        selectorThread = new Thread(this::selectForever, "DNS-udp-transport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /** Sends a query and returns a future that is completed with the matching response. The
+     * future fails with a SocketTimeoutException if no response is received from the server
+     * within the timeout, or with an IOException if the query could not be sent, e.g., because
+     * the socket send buffer stayed full. Sending the same packet again after a timeout
+     * retransmits the query with the same transaction ID.
+     *
+     * If another query with the same transaction ID is already waiting for a response from the
+     * same server, nothing is sent and null is returned; the caller should pick another ID and
+     * try again. Checking and reserving the ID is a single atomic step, so concurrent lookups
+     * never fail because they picked the same ID.
+     *
+     * @param query         Query packet, including the destination address and port.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the response packet, or null if the transaction ID is in use.
+     */
+    CompletableFuture<DatagramPacket> query(DatagramPacket query, long timeoutMillis) {
+        InetSocketAddress server = (InetSocketAddress) query.getSocketAddress();
+        int transactionID = ((query.getData()[query.getOffset()] & 0xFF) << 8)
+                | (query.getData()[query.getOffset() + 1] & 0xFF);
+        PendingQuery pending = new PendingQuery(new PendingKey(transactionID, server),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+        if (pendingQueries.putIfAbsent(pending.key, pending) != null)
+            return null;
+        deadlines.add(pending);
+        if (deadlines.peek() == pending)
+            selector.wakeup();
+
+        try {
+            send(ByteBuffer.wrap(query.getData(), query.getOffset(), query.getLength()), server);
+        } catch (IOException e) {
+            pendingQueries.remove(pending.key, pending);
+            pending.response.completeExceptionally(e);
+        }
+        return pending.response;
+    }
+
+    /** Sends a datagram on the non-blocking channel. A send that returns 0 means the datagram
+     * was not sent because the socket send buffer was full; it is retried a few times, and then
+     * fails right away, rather than leaving the caller to wait for a response to a query that
+     * was never sent.
+     */
+    private void send(ByteBuffer datagram, InetSocketAddress server) throws IOException {
+        for (int attempt = 0; attempt < SEND_ATTEMPTS; attempt++) {
+            if (channel.send(datagram, server) > 0)
+                return;
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(SEND_RETRY_MICROS));
+        }
+        throw new IOException("UDP send buffer full, query to "
+                + server.getAddress().getHostAddress() + " not sent");
+    }
+
+    @Override
+    public void close() throws IOException {
+        selectorThread.interrupt();
+        selector.close();
+        channel.close();
+        for (PendingQuery pending : pendingQueries.values())
+            pending.response.completeExceptionally(new ClosedChannelException());
+        pendingQueries.clear();
+    }
+
+    private void selectForever() {
+        while (channel.isOpen()) {
+            try {
+                selector.select(Math.max(1, Math.min(MAX_SELECT_MILLIS, millisUntilNextDeadline())));
+                selector.selectedKeys().clear();
+                receiveAll();
+                expireTimedOutQueries();
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("UDP transport failure: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Reads every datagram currently available on the channel, completing the query each one
+     * answers. Datagrams that do not match any outstanding query are discarded.
+     */
+    private void receiveAll() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null)
+                return;
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < 2)
+                continue;
+
+            int transactionID = ((receiveBuffer.get(0) & 0xFF) << 8) | (receiveBuffer.get(1) & 0xFF);
+            PendingQuery pending = pendingQueries.remove(new PendingKey(transactionID, (InetSocketAddress) source));
+            if (pending == null)
+                continue;
+
+            byte[] data = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(data);
+            pending.response.complete(new DatagramPacket(data, data.length, source));
+        }
+    }
+
+    private void expireTimedOutQueries() {
+        long now = System.nanoTime();
+        PendingQuery pending;
+        while ((pending = deadlines.peek()) != null && pending.deadline - now <= 0) {
+            deadlines.poll();
+            if (pendingQueries.remove(pending.key, pending))
+                pending.response.completeExceptionally(new SocketTimeoutException(
+                        "No response from " + pending.key.server.getAddress().getHostAddress()));
+        }
+    }
+
+    private long millisUntilNextDeadline() {
+        PendingQuery pending = deadlines.peek();
+        return pending == null ? MAX_SELECT_MILLIS
+                : TimeUnit.NANOSECONDS.toMillis(pending.deadline - System.nanoTime() + 999999);
+    }
+
+    /** Key used to match a response to its query: the transaction ID, and the address and port
+     * of the server the query was sent to.
+     */
+    private static class PendingKey {
+        private final int transactionID;
+        private final InetSocketAddress server;
+
+        private PendingKey(int transactionID, InetSocketAddress server) {
+            this.transactionID = transactionID;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PendingKey that = (PendingKey) o;
+
+            if (transactionID != that.transactionID) return false;
+            return server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * transactionID + server.hashCode();
+        }
+    }
+
+    private static class PendingQuery {
+        private final PendingKey key;
+        private final long deadline;
+        private final CompletableFuture<DatagramPacket> response = new CompletableFuture<>();
+
+        private PendingQuery(PendingKey key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}